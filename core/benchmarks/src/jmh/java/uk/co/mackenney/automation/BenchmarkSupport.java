@@ -0,0 +1,66 @@
+package uk.co.mackenney.automation;
+
+import org.springframework.boot.actuate.metrics.GaugeService;
+import uk.co.mackenney.automation.filewatcher.FileProcessEventPublisher;
+import uk.co.mackenney.automation.filewatcher.FileWatcherConfiguration;
+import uk.co.mackenney.automation.filewatcher.PipelineMetrics;
+
+import java.lang.reflect.Field;
+
+/**
+ * Helpers shared by the benchmarks, which build components without a Spring context.
+ */
+public final class BenchmarkSupport {
+    /**
+     * Seed for all generated data, so that every run measures the same inputs.
+     */
+    public static final long SEED = 20170107L;
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Pipeline metrics which discard everything submitted to them.
+     */
+    public static PipelineMetrics discardingMetrics() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        inject(metrics, "gaugeService", new GaugeService() {
+            @Override
+            public void submit(String metricName, double value) {
+            }
+        });
+        return metrics;
+    }
+
+    /**
+     * Event publisher with no subscribers, which only keeps the resume history.
+     */
+    public static FileProcessEventPublisher eventPublisher(FileWatcherConfiguration config) {
+        FileProcessEventPublisher publisher = new FileProcessEventPublisher();
+        inject(publisher, "config", config);
+        publisher.init();
+        return publisher;
+    }
+
+    /**
+     * Sets a field which Spring would normally autowire.
+     */
+    public static void inject(Object target, String fieldName, Object value) {
+        Class<?> type = target.getClass();
+        while (type != null) {
+            try {
+                Field field = type.getDeclaredField(fieldName);
+                field.setAccessible(true);
+                field.set(target, value);
+                return;
+            }
+            catch (NoSuchFieldException nsfe) {
+                type = type.getSuperclass();
+            }
+            catch (IllegalAccessException iae) {
+                throw new IllegalStateException(iae);
+            }
+        }
+        throw new IllegalArgumentException("No field " + fieldName + " on " + target.getClass());
+    }
+}
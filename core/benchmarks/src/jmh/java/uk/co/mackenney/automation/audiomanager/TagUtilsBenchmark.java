@@ -0,0 +1,82 @@
+package uk.co.mackenney.automation.audiomanager;
+
+import org.jaudiotagger.tag.FieldKey;
+import org.jaudiotagger.tag.Tag;
+import org.jaudiotagger.tag.mp4.Mp4Tag;
+import org.openjdk.jmh.annotations.*;
+import uk.co.mackenney.automation.BenchmarkSupport;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of working out where a track is filed, over synthetic tags covering albums, multi-disc
+ * sets, compilations, soundtracks and singles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class TagUtilsBenchmark {
+    private static final String[] GENRES = {"Rock", "Jazz", "Soundtrack", "Childrens", "Classical"};
+
+    @Param({"1024"})
+    public int tagCount;
+
+    private Tag[] tags;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void generateTags() throws Exception {
+        Random random = new Random(BenchmarkSupport.SEED);
+        tags = new Tag[tagCount];
+        for (int i = 0; i < tagCount; i++) {
+            Mp4Tag tag = new Mp4Tag();
+            int totalDiscs = random.nextInt(4) == 0 ? 2 + random.nextInt(3) : 1;
+            String album = "Album " + random.nextInt(500);
+            switch (random.nextInt(5)) {
+                case 0:
+                    album += " (Disc " + (1 + random.nextInt(totalDiscs)) + ")";
+                    break;
+                case 1:
+                    album += " - Single " + AudioManagerConstants.SINGLE_TAG;
+                    break;
+                default:
+                    break;
+            }
+            tag.setField(FieldKey.ALBUM, album);
+            tag.setField(FieldKey.ALBUM_ARTIST, "Artist: " + random.nextInt(200) + "/\"Live\"");
+            tag.setField(FieldKey.ARTIST, "Artist " + random.nextInt(400));
+            tag.setField(FieldKey.TITLE, "Track <" + i + "> What?");
+            tag.setField(FieldKey.TRACK, Integer.toString(1 + random.nextInt(20)));
+            tag.setField(FieldKey.DISC_NO, Integer.toString(1 + random.nextInt(totalDiscs)));
+            tag.setField(FieldKey.DISC_TOTAL, Integer.toString(totalDiscs));
+            tag.setField(FieldKey.GENRE, GENRES[random.nextInt(GENRES.length)]);
+            if (random.nextInt(6) == 0) tag.setField(FieldKey.IS_COMPILATION, "1");
+            tags[i] = tag;
+        }
+    }
+
+    private Tag nextTag() {
+        Tag tag = tags[next];
+        next = (next + 1) % tags.length;
+        return tag;
+    }
+
+    @Benchmark
+    public String targetPath() {
+        return TagUtils.getTargetPath(nextTag());
+    }
+
+    @Benchmark
+    public String targetFilename() {
+        return TagUtils.getTargetFilename(nextTag());
+    }
+
+    @Benchmark
+    public TrackMetadata trackMetadata() {
+        return TrackMetadata.fromTag(nextTag());
+    }
+}
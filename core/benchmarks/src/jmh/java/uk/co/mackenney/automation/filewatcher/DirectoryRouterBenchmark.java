@@ -0,0 +1,69 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.mackenney.automation.BenchmarkSupport;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of finding the processor for a file, as done for every file found by the watcher and by
+ * locateProcessorForFile, over generated trees of tracked files at different depths.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Thread)
+public class DirectoryRouterBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int trackedFiles;
+
+    @Param({"2", "8"})
+    public int depth;
+
+    @Param({"4", "64"})
+    public int mappings;
+
+    private DirectoryRouter router;
+    private Path[] files;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void generateTree() {
+        Random random = new Random(BenchmarkSupport.SEED);
+        router = new DirectoryRouter();
+        for (int i = 0; i < mappings; i++) {
+            Path directory = Paths.get("/watch", "mapping" + i);
+            router.add(directory, "processor" + i, null, i % 2 == 0 ? Collections.<String>emptyList() : Collections.singletonList("*.m4a"));
+            // Nested mappings exercise the longest-prefix match
+            if (i % 4 == 0) router.add(directory.resolve("nested"), "nested" + i, null, Collections.<String>emptyList());
+        }
+        files = new Path[trackedFiles];
+        for (int i = 0; i < trackedFiles; i++) {
+            Path file = Paths.get("/watch", "mapping" + random.nextInt(mappings));
+            for (int d = 0; d < depth; d++) {
+                file = file.resolve(d == 0 && random.nextBoolean() ? "nested" : "dir" + random.nextInt(16));
+            }
+            files[i] = file.resolve("file" + i + (random.nextBoolean() ? ".m4a" : ".jpg"));
+        }
+    }
+
+    @Benchmark
+    public DirectoryRouter.Route route() {
+        Path file = files[next];
+        next = (next + 1) % files.length;
+        return router.route(file);
+    }
+
+    @Benchmark
+    public Path locateDirectory() {
+        Path file = files[next];
+        next = (next + 1) % files.length;
+        return router.locateDirectory(file);
+    }
+}
@@ -0,0 +1,46 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording and formatting the log kept for each file, as written to .err reports and
+ * returned by the status endpoint.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class FileProcessBenchmark {
+    @Param({"10", "100"})
+    public int messageCount;
+
+    private FileProcess process;
+
+    @Setup(Level.Trial)
+    public void createProcess() {
+        process = new FileProcess(Paths.get("/watch/music/Artist/Album/01 Track.m4a"));
+        for (int i = 0; i < messageCount; i++) {
+            process.log("Message " + i);
+        }
+    }
+
+    @Benchmark
+    public String toLogString() {
+        return process.toLogString();
+    }
+
+    @Benchmark
+    public FileProcess createAndTransition() {
+        FileProcess created = new FileProcess(Paths.get("/watch/music/Artist/Album/01 Track.m4a"));
+        created.setReadyToProcess();
+        created.setQueued();
+        created.setProcessing();
+        created.setProcessed();
+        return created;
+    }
+}
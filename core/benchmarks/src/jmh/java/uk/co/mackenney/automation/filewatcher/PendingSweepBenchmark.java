@@ -0,0 +1,63 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.mackenney.automation.ServerAutomationConfiguration;
+
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static uk.co.mackenney.automation.BenchmarkSupport.discardingMetrics;
+import static uk.co.mackenney.automation.BenchmarkSupport.eventPublisher;
+import static uk.co.mackenney.automation.BenchmarkSupport.inject;
+
+/**
+ * Cost of the scheduled sweep over pending files with the readiness check itself stubbed out, so
+ * that only the bookkeeping done on every pendingCheckInterval is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Thread)
+public class PendingSweepBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int trackedFiles;
+
+    private FileWatcherService service;
+
+    @Setup(Level.Trial)
+    public void trackFiles() {
+        FileWatcherConfiguration config = new FileWatcherConfiguration();
+        config.setMaxTrackedFiles(0);
+        inject(config, "readinessDetectorBean", new FileReadinessDetector() {
+            @Override
+            public Collection<FileProcess> findReadyFiles(Collection<FileProcess> pendingFiles) {
+                return Collections.emptyList();
+            }
+        });
+
+        ProcessScheduler scheduler = new ProcessScheduler();
+        inject(scheduler, "config", config);
+        inject(scheduler, "automationConfig", new ServerAutomationConfiguration());
+
+        service = new FileWatcherService();
+        inject(service, "config", config);
+        inject(service, "scheduler", scheduler);
+        inject(service, "journal", new FileProcessJournal());
+        inject(service, "metrics", discardingMetrics());
+        inject(service, "eventPublisher", eventPublisher(config));
+
+        for (int i = 0; i < trackedFiles; i++) {
+            FileProcess process = new FileProcess(Paths.get("/watch", "dir" + (i % 1000), "file" + i), service);
+            process.publish();
+        }
+    }
+
+    @Benchmark
+    public void monitorPendingFiles() throws Exception {
+        service.monitorPendingFiles();
+    }
+}
@@ -0,0 +1,76 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static uk.co.mackenney.automation.BenchmarkSupport.SEED;
+import static uk.co.mackenney.automation.BenchmarkSupport.discardingMetrics;
+import static uk.co.mackenney.automation.BenchmarkSupport.inject;
+
+/**
+ * Cost of staging an input into the temporary directory and releasing it again, per strategy and
+ * file size.  Files are created under the directory named by the benchmark.dir system property,
+ * or the default temporary directory, so that the filesystem being measured can be chosen.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class StagingBenchmark {
+    @Param({"HARDLINK", "MOVE", "COPY"})
+    public FileStager.StagingStrategy strategy;
+
+    @Param({"1048576", "67108864"})
+    public int fileSize;
+
+    private Path directory;
+    private Path tempFile;
+    private FileStager stager;
+    private FileProcess process;
+
+    @Setup(Level.Trial)
+    public void createInput() throws IOException {
+        String base = System.getProperty("benchmark.dir", System.getProperty("java.io.tmpdir"));
+        directory = Files.createTempDirectory(Paths.get(base), "staging-benchmark");
+        Path input = directory.resolve("input.m4a");
+        byte[] block = new byte[65536];
+        new Random(SEED).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(input)) {
+            for (int written = 0; written < fileSize; written += block.length) {
+                out.write(block, 0, Math.min(block.length, fileSize - written));
+            }
+        }
+        tempFile = Files.createDirectory(directory.resolve("temp")).resolve("1.m4a");
+
+        FileWatcherConfiguration config = new FileWatcherConfiguration();
+        config.setStagingStrategies(Collections.singletonList(strategy));
+        stager = new FileStager();
+        inject(stager, "config", config);
+        inject(stager, "metrics", discardingMetrics());
+        process = new FileProcess(input);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteInput() throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Benchmark
+    public FileStager.StagingStrategy stageAndRelease() throws IOException {
+        stager.stage(process, tempFile);
+        // A failed release puts a moved input back, ready for the next invocation
+        stager.release(process, process.getStagingStrategy() != FileStager.StagingStrategy.MOVE);
+        return process.getStagingStrategy();
+    }
+}
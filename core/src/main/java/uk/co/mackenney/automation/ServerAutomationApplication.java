@@ -10,8 +10,12 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import uk.co.mackenney.automation.util.BoundedExecutor;
+import uk.co.mackenney.automation.util.CpuPermits;
+import uk.co.mackenney.automation.util.VirtualThreads;
 
 import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
 
 @SpringBootApplication
 @EnableScheduling
@@ -29,13 +33,47 @@ public class ServerAutomationApplication {
 
     @Bean
     public Executor processorExecutor() {
-        log.info("Initializing processor pool.  CorePoolSize: " + config.getProcessorCorePoolSize() + "  MaxPoolSize: " + config.getProcessorMaxPoolSize());
+        if (config.isVirtualThreads()) {
+            log.info("Initializing processor executor.  One virtual thread per file");
+            return VirtualThreads.newVirtualThreadPerTaskExecutor("processor-");
+        }
+        if (config.getExecutionMode() == ServerAutomationConfiguration.ExecutionMode.VIRTUAL) {
+            log.warn("Virtual threads need Java 21 or later, running " + System.getProperty("java.version") + ".  Using platform threads");
+        }
+        log.info("Initializing processor pool.  CorePoolSize: " + config.getProcessorCorePoolSize() + "  MaxPoolSize: " + config.getProcessorMaxPoolSize() + "  QueueCapacity: " + config.getProcessorQueueCapacity());
         ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
         pool.setCorePoolSize(config.getProcessorCorePoolSize());
         pool.setMaxPoolSize(config.getProcessorMaxPoolSize());
+        pool.setQueueCapacity(config.getProcessorQueueCapacity());
+        // Rejected files go back to the front of their scheduler queue
+        pool.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
         pool.setThreadNamePrefix("processor-");
         pool.setWaitForTasksToCompleteOnShutdown(true);
         return pool;
     }
 
+    /**
+     * Permits for CPU-bound work, shared by the encodes and the CPU-bound stages of processors.
+     */
+    @Bean
+    public CpuPermits cpuPermits() {
+        return config.isVirtualThreads() ? new CpuPermits(config.getEncoderMaxPoolSize()) : CpuPermits.unlimited();
+    }
+
+    @Bean
+    public Executor encoderExecutor() {
+        if (config.isVirtualThreads()) {
+            // CPU-bound work is capped by permits rather than by the number of threads
+            log.info("Initializing encoder executor.  Virtual threads, CPU permits: " + config.getEncoderMaxPoolSize());
+            return new BoundedExecutor(VirtualThreads.newVirtualThreadPerTaskExecutor("encoder-"), cpuPermits());
+        }
+        log.info("Initializing encoder pool.  MaxPoolSize: " + config.getEncoderMaxPoolSize());
+        ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
+        pool.setCorePoolSize(config.getEncoderMaxPoolSize());
+        pool.setMaxPoolSize(config.getEncoderMaxPoolSize());
+        pool.setThreadNamePrefix("encoder-");
+        pool.setWaitForTasksToCompleteOnShutdown(true);
+        return pool;
+    }
+
 } 
@@ -2,11 +2,34 @@ package uk.co.mackenney.automation;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
+import uk.co.mackenney.automation.util.VirtualThreads;
 
 @Component
 @ConfigurationProperties(prefix="automation")
 public class ServerAutomationConfiguration {
 
+    /**
+     * PLATFORM: processors run on a fixed pool of processorMaxPoolSize threads
+     * VIRTUAL: each file, encode and host command stream runs on its own virtual thread (JDK 21 or
+     * later), and concurrency is limited by maxInFlight and by permits for CPU-bound work
+     */
+    public enum ExecutionMode {PLATFORM, VIRTUAL}
+
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+    public void setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+    }
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+    /**
+     * True if virtual threads were asked for and the running JVM has them.
+     */
+    public boolean isVirtualThreads() {
+        return executionMode == ExecutionMode.VIRTUAL && VirtualThreads.isSupported();
+    }
+
+
     private int processorCorePoolSize;
     public void setProcessorCorePoolSize(int processorCorePoolSize) {
         this.processorCorePoolSize = processorCorePoolSize;
@@ -24,6 +47,57 @@ public class ServerAutomationConfiguration {
         return processorMaxPoolSize;
     }
 
+
+    /**
+     * Capacity of the processor pool's task queue; zero sizes it to processorMaxPoolSize.  Files
+     * wait in the scheduler rather than here, so this only needs to absorb hand-offs between threads.
+     */
+    private int processorQueueCapacity;
+    public void setProcessorQueueCapacity(int processorQueueCapacity) {
+        this.processorQueueCapacity = processorQueueCapacity;
+    }
+    public int getProcessorQueueCapacity() {
+        return processorQueueCapacity > 0 ? processorQueueCapacity : Math.max(1, processorMaxPoolSize);
+    }
+
+
+    /**
+     * Upper limit on concurrent encoder (ffmpeg) processes across all processor threads.  Zero
+     * sizes the pool to the number of available processors.  With virtual threads it is the number
+     * of permits for CPU-bound work.
+     */
+    private int encoderMaxPoolSize;
+    public void setEncoderMaxPoolSize(int encoderMaxPoolSize) {
+        this.encoderMaxPoolSize = encoderMaxPoolSize;
+    }
+    public int getEncoderMaxPoolSize() {
+        return encoderMaxPoolSize > 0 ? encoderMaxPoolSize : Runtime.getRuntime().availableProcessors();
+    }
+
+
+    /**
+     * Seconds a host command may run before it is killed.  Zero waits indefinitely.
+     */
+    private long hostCommandTimeout;
+    public void setHostCommandTimeout(long hostCommandTimeout) {
+        this.hostCommandTimeout = hostCommandTimeout;
+    }
+    public long getHostCommandTimeout() {
+        return hostCommandTimeout;
+    }
+
+
+    /**
+     * Number of characters of stdout and of stderr kept from each host command; earlier output is discarded.
+     */
+    private int hostCommandOutputLimit = 65536;
+    public void setHostCommandOutputLimit(int hostCommandOutputLimit) {
+        this.hostCommandOutputLimit = hostCommandOutputLimit;
+    }
+    public int getHostCommandOutputLimit() {
+        return hostCommandOutputLimit;
+    }
+
 }
 
 
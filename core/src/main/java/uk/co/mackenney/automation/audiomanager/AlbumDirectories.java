@@ -0,0 +1,145 @@
+package uk.co.mackenney.automation.audiomanager;
+
+import org.jaudiotagger.tag.Tag;
+import org.jaudiotagger.tag.datatype.Artwork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prepares the album directories tracks are written to, once per directory rather than once per
+ * track.  Each directory under a destination (the destination followed by the track's target
+ * path) has its own state.  The first track to reach it creates the directory and writes
+ * folder.jpg, and the tracks after it only look the state up.  Tracks of the same album processed
+ * concurrently wait on the directory's lock, so the artwork is written exactly once.
+ *
+ * folder.jpg is written to a temporary file and renamed into place, so a reader never sees a
+ * partial image.  The most recently used {@code audioManager.albumCacheSize} directories are remembered.
+ */
+@Component
+public class AlbumDirectories implements PublicMetrics {
+    private static Logger log = LoggerFactory.getLogger(AlbumDirectories.class);
+
+    static final String ARTWORK_FILENAME = "folder.jpg";
+
+    @Autowired
+    private AudioManagerConfiguration config;
+
+    private final AtomicLong directoriesCreated = new AtomicLong();
+    private final AtomicLong artworkWritten = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+
+    private static class AlbumDirectory {
+        private final Path path;
+        private boolean created;
+        private boolean hasArtwork;
+
+        AlbumDirectory(Path path) {
+            this.path = path;
+        }
+    }
+
+    private final Map<Path, AlbumDirectory> directories = new LinkedHashMap<Path, AlbumDirectory>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, AlbumDirectory> eldest) {
+            return size() > config.getAlbumCacheSize();
+        }
+    };
+
+    private AlbumDirectory get(Path path) {
+        synchronized (directories) {
+            AlbumDirectory directory = directories.get(path);
+            if (directory == null) {
+                directory = new AlbumDirectory(path);
+                directories.put(path, directory);
+            }
+            return directory;
+        }
+    }
+
+    /**
+     * Makes sure the directory exists and holds the album artwork from the tag, if it has any.
+     */
+    public void prepare(Path path, Tag tag) throws IOException {
+        AlbumDirectory directory = get(path);
+        synchronized (directory) {
+            if (directory.created && directory.hasArtwork) {
+                hits.incrementAndGet();
+                return;
+            }
+            if (!directory.created) {
+                if (!Files.isDirectory(path)) {
+                    log.debug("--- prepare(): Creating directory " + path);
+                    Files.createDirectories(path);
+                    directoriesCreated.incrementAndGet();
+                }
+                directory.created = true;
+            }
+            Path artworkFile = path.resolve(ARTWORK_FILENAME);
+            if (Files.isRegularFile(artworkFile)) {
+                directory.hasArtwork = true;
+                return;
+            }
+            Artwork artwork = tag.getFirstArtwork();
+            if (artwork == null || artwork.getBinaryData() == null) {
+                // A later track of the album may carry artwork
+                return;
+            }
+            writeArtwork(artworkFile, artwork.getBinaryData());
+            directory.hasArtwork = true;
+        }
+    }
+
+    private void writeArtwork(Path artworkFile, byte[] data) throws IOException {
+        log.debug("--- writeArtwork(): Writing " + artworkFile);
+        Path temp = Files.createTempFile(artworkFile.getParent(), "." + ARTWORK_FILENAME, ".tmp");
+        try {
+            Files.write(temp, data);
+            Files.move(temp, artworkFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            artworkWritten.incrementAndGet();
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Forgets the directory, so the next track checks it on disk again.  Used after a write into
+     * it failed, in case it was removed while remembered.
+     */
+    public void invalidate(Path path) {
+        synchronized (directories) {
+            directories.remove(path);
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        int size;
+        synchronized (directories) {
+            size = directories.size();
+        }
+        metrics.add(new Metric<>("audiomanager.albums.cached", size));
+        metrics.add(new Metric<>("audiomanager.albums.hits", hits.get()));
+        metrics.add(new Metric<>("audiomanager.albums.directoriesCreated", directoriesCreated.get()));
+        metrics.add(new Metric<>("audiomanager.albums.artworkWritten", artworkWritten.get()));
+        return metrics;
+    }
+}
@@ -4,25 +4,32 @@ import org.jaudiotagger.audio.AudioFile;
 import org.jaudiotagger.audio.AudioFileIO;
 import org.jaudiotagger.tag.FieldKey;
 import org.jaudiotagger.tag.Tag;
-import org.jaudiotagger.tag.datatype.Artwork;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 import uk.co.mackenney.automation.filewatcher.FileProcess;
 import uk.co.mackenney.automation.filewatcher.FileProcessor;
+import uk.co.mackenney.automation.filewatcher.PipelineMetrics;
+import uk.co.mackenney.automation.util.CpuPermits;
 import uk.co.mackenney.automation.util.FileUtil;
 import uk.co.mackenney.automation.util.HostUtil;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 @Component
 public class AudioManager implements FileProcessor {
@@ -37,6 +44,19 @@ public class AudioManager implements FileProcessor {
     @Autowired
     private FileUtil fileUtil;
 
+    @Autowired
+    @Qualifier("encoderExecutor")
+    private Executor encoderExecutor;
+
+    @Autowired
+    private PipelineMetrics metrics;
+
+    @Autowired
+    private AlbumDirectories albums;
+
+    @Autowired
+    private CpuPermits cpuPermits;
+
     private boolean isAllowedInputFileExtension(FileProcess process) {
         log.trace("--> isAllowedInputFileExtension(" + process.getPath() + ")");
         for (String extension : config.getAllowedInputFileExtensions()) {
@@ -46,31 +66,34 @@ public class AudioManager implements FileProcessor {
         return false;
     }
 
-    private void fixTags(Path filePath) throws Exception {
-        log.trace("--> fixTags(" + filePath + ")");
-        AudioFile f = AudioFileIO.read(filePath.toFile());
+    /**
+     * Applies the tag fixes to the parsed file in memory, and commits them to the temporary file
+     * if anything changed.  The same tag is then used for every later stage.
+     */
+    private void fixTags(AudioFile f, TrackMetadata metadata) throws Exception {
+        log.trace("--> fixTags(" + f.getFile() + ")");
         Tag tag = f.getTag();
         boolean requiresCommit = false;
-        if (TagUtils.isCompilation(tag)) {
+        if (metadata.isCompilation()) {
             log.debug("--- run(): Compilation detected - Setting album artist to Various Artists");
             tag.setField(FieldKey.ALBUM_ARTIST, "Various Artists");
             requiresCommit = true;
         }
 
-        if (TagUtils.isSoundtrack(tag)) {
+        if (metadata.isSoundtrack()) {
             log.debug("--- run(): Soundtrack detected - Setting album artist to Various Artists");
             tag.setField(FieldKey.ALBUM_ARTIST, "Soundtrack");
             requiresCommit = true;
         }
-        if (TagUtils.isMultiDisc(tag)) {
+        if (metadata.isMultiDisc()) {
             log.debug("--- run(): Multi disc album detected - removing disc from album title");
             // Remove the disc from the Album title
-            tag.setField(FieldKey.ALBUM, TagUtils.getAlbum(tag));
+            tag.setField(FieldKey.ALBUM, metadata.getAlbum());
             requiresCommit = true;
         }
-        if (TagUtils.isSingle(tag)) {
+        if (metadata.isSingle()) {
             log.debug("--- run(): Single detected - fixing album name");
-            tag.setField(FieldKey.ALBUM, TagUtils.getAlbum(tag));
+            tag.setField(FieldKey.ALBUM, metadata.getAlbum());
             requiresCommit = true;
         }
 
@@ -78,62 +101,186 @@ public class AudioManager implements FileProcessor {
         log.trace("<-- fixTags()");
     }
 
-    private void ensureDirectoryExists(Path path) {
-        log.debug("--> ensureDirectoryExists(" + path + ")");
-        File dir = path.toFile();
-        if (!dir.isDirectory()) {
-            dir.mkdirs();
-        }
-        log.debug("<-- ensureDirectoryExists()");
-    }
-
-    private void copyArtwork(Tag tag, Path path) throws IOException {
-        log.trace("--> copyArtwork(" + tag + "," + path + ")");
-        File f = new File(path.toFile(), "folder.jpg");
-        if (!f.isFile()) {
-            log.debug("--- copyArtwork(): folder.jpg does not yet exist in directory " + path);
-            Artwork artwork = tag.getFirstArtwork();
-            FileOutputStream fos = new FileOutputStream(f);
-            fos.write(artwork.getBinaryData());
-            fos.flush();
-            fos.close();
-            log.debug("--- copyArtwork(): Finished copying file");
-        }
-        log.trace("<--copyArtwork()");
+    /**
+     * Parses the temporary file once, recording the parse time and the bytes read by this thread
+     * while parsing.
+     */
+    private AudioFile readAudioFile(FileProcess fileProcess) throws Exception {
+        long bytesReadBefore = fileUtil.getThreadBytesRead();
+        long start = System.nanoTime();
+        AudioFile f = cpuPermits.call(() -> AudioFileIO.read(fileProcess.getTempFilePath().toFile()));
+        long parseNanos = System.nanoTime() - start;
+        metrics.recordNanos("audiomanager.tagParse", parseNanos);
+        long parseMillis = parseNanos / 1000000;
+        long bytesRead = bytesReadBefore < 0 ? -1 : fileUtil.getThreadBytesRead() - bytesReadBefore;
+        fileProcess.log("Parsed tags in " + parseMillis + "ms" + (bytesRead < 0 ? "" : ", " + bytesRead + " bytes read"));
+        log.debug("--- readAudioFile(): Parsed " + fileProcess.getTempFilePath() + " in " + parseMillis + "ms, " + bytesRead + " bytes read");
+        return f;
     }
 
-
-    private Path getTargetPath(Tag t, Path parent, String extension) {
-        return parent.resolve(TagUtils.getTargetPath(t)).resolve(TagUtils.getTargetFilename(t) + (extension.startsWith(".") ? "" : ".") + extension);
+    private Path getTargetPath(TrackMetadata metadata, Path parent, String extension) {
+        return parent.resolve(metadata.getTargetPath()).resolve(metadata.getTargetFilename() + (extension.startsWith(".") ? "" : ".") + extension);
     }
 
 
-    private void copyLosslessFileToTarget(Tag tag, Path inputFilePath, String originalFileExtension) throws Exception {
+    private void copyLosslessFileToTarget(FileProcess fileProcess, Tag tag, TrackMetadata metadata, Path inputFilePath, String originalFileExtension) throws Exception {
         log.trace("--> copyLosslessFileToTarget(" + inputFilePath + "," + originalFileExtension + ")");
-        Path targetFilePath = getTargetPath(tag,Paths.get(config.getOriginalFormatDestination()),originalFileExtension);
+        Path targetFilePath = getTargetPath(metadata,Paths.get(config.getOriginalFormatDestination()),originalFileExtension);
         log.debug("--- run(): Copying audio file to target directory: " + targetFilePath.getParent());
-        ensureDirectoryExists(targetFilePath.getParent());
-        copyArtwork(tag, targetFilePath.getParent());
+        albums.prepare(targetFilePath.getParent(), tag);
         Files.copy(inputFilePath,targetFilePath, StandardCopyOption.REPLACE_EXISTING);
+        fileProcess.addOutput(targetFilePath);
         log.trace("<-- copyLosslessFileToTarget()");
     }
 
-    private void runFfmpeg(Tag tag, Path inputFile, Path outputFile, String conversionOptions) throws IOException {
-        log.trace("--> runFfmpeg(" + inputFile + "," + outputFile + "," + conversionOptions + ")");
-        ensureDirectoryExists(outputFile.getParent());
-        copyArtwork(tag, outputFile.getParent());
+    private void addConversionOptions(List<String> command, String conversionOptions) {
         StringTokenizer tokenizer = new StringTokenizer(conversionOptions," ");
+        while (tokenizer.hasMoreTokens()) {
+            command.add(tokenizer.nextToken());
+        }
+    }
+
+    private void runFfmpegCommand(List<String> command, long durationMillis, String timerName) {
+        String[] commandArray = command.toArray(new String[command.size()]);
+        FfmpegProgressListener progress = new FfmpegProgressListener(command.get(command.size() - 1), durationMillis);
+        long start = System.nanoTime();
+        HostUtil.HostCallResult result = hostUtil.runHostCommand(commandArray, progress);
+        if (result.getExitCode() != 0) throw new RuntimeException(result.toString());
+        metrics.recordSince(timerName, start);
+    }
+
+    private void runFfmpeg(Tag tag, Path inputFile, long durationMillis, Path outputFile, String conversionOptions, String fileExtension) throws IOException {
+        log.trace("--> runFfmpeg(" + inputFile + "," + outputFile + "," + conversionOptions + ")");
+        albums.prepare(outputFile.getParent(), tag);
         ArrayList<String> command = new ArrayList<>();
         command.add("ffmpeg");
         command.add("-i");
         command.add(inputFile.toString());
-        while (tokenizer.hasMoreTokens()) {
-            command.add(tokenizer.nextToken());
-        }
+        addConversionOptions(command, conversionOptions);
         command.add(outputFile.toString());
+        runFfmpegCommand(command, durationMillis, "audiomanager.encode." + fileExtension);
+    }
 
-        HostUtil.HostCallResult result = hostUtil.runHostCommand(command.toArray(new String[command.size()]));
-        if (result.getExitCode() != 0) throw new RuntimeException(result.toString());
+    /**
+     * Runs one ffmpeg process which decodes the input once and writes every output destination,
+     * each with its own conversion options in front of its output file.
+     */
+    private void runFfmpegSingleDecode(Tag tag, Path inputFile, long durationMillis, List<Path> outputFiles) throws IOException {
+        log.trace("--> runFfmpegSingleDecode(" + inputFile + "," + outputFiles + ")");
+        ArrayList<String> command = new ArrayList<>();
+        command.add("ffmpeg");
+        command.add("-i");
+        command.add(inputFile.toString());
+        for (int i=0; i<outputFiles.size(); i++) {
+            Path outputFile = outputFiles.get(i);
+            albums.prepare(outputFile.getParent(), tag);
+            addConversionOptions(command, config.getOutputDestinations().get(i).getConversionOptions());
+            command.add(outputFile.toString());
+        }
+        runFfmpegCommand(command, durationMillis, "audiomanager.encode.singleDecode");
+        log.trace("<-- runFfmpegSingleDecode()");
+    }
+
+    private interface EncodeTask {
+        public void run() throws IOException;
+    }
+
+    private CompletableFuture<Void> encode(final EncodeTask task) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                task.run();
+            }
+            catch (IOException ioe) {
+                throw new CompletionException(ioe);
+            }
+        }, encoderExecutor);
+    }
+
+    /**
+     * Waits for every encode to finish, and rethrows the first failure.
+     */
+    private void awaitEncodes(List<CompletableFuture<Void>> encodes) throws Throwable {
+        try {
+            CompletableFuture.allOf(encodes.toArray(new CompletableFuture<?>[0])).join();
+        }
+        catch (CompletionException ce) {
+            throw ce.getCause();
+        }
+    }
+
+    private List<Path> getOutputFiles(TrackMetadata metadata) {
+        List<Path> outputFiles = new ArrayList<>();
+        for (AudioManagerConfiguration.OutputDestination destination : config.getOutputDestinations()) {
+            outputFiles.add(getTargetPath(metadata, Paths.get(destination.getDirectory()), destination.getFileExtension()));
+        }
+        return outputFiles;
+    }
+
+    /**
+     * Encodes every output destination concurrently on the encoder pool, which caps the number of
+     * ffmpeg processes across all tracks.
+     */
+    private void runFfmpegForAllDestinations(final Tag tag, final Path inputFile, final long durationMillis, final List<Path> outputFiles) throws Throwable {
+        List<CompletableFuture<Void>> encodes = new ArrayList<>();
+        for (int i=0; i<outputFiles.size(); i++) {
+            final Path outputFile = outputFiles.get(i);
+            final AudioManagerConfiguration.OutputDestination destination = config.getOutputDestinations().get(i);
+            encodes.add(encode(() -> runFfmpeg(tag, inputFile, durationMillis, outputFile, destination.getConversionOptions(), destination.getFileExtension())));
+        }
+        awaitEncodes(encodes);
+    }
+
+    /**
+     * Writes all output destinations, from a single decode when configured.  If the combined run
+     * fails, its partial outputs are removed and each destination is encoded separately.
+     */
+    private void transcode(FileProcess fileProcess, final Tag tag, final TrackMetadata metadata, final Path inputFile, final long durationMillis) throws Throwable {
+        final List<Path> outputFiles = getOutputFiles(metadata);
+        if (config.isSingleDecode() && outputFiles.size() > 1) {
+            try {
+                awaitEncodes(Collections.singletonList(encode(() -> runFfmpegSingleDecode(tag, inputFile, durationMillis, outputFiles))));
+                recordOutputs(fileProcess, outputFiles);
+                return;
+            }
+            catch (Throwable t) {
+                log.warn("Single decode transcoding failed for " + fileProcess + ", encoding each destination separately", t);
+                fileProcess.log("Single decode transcoding failed, encoding each destination separately: " + t.toString());
+                for (Path outputFile : outputFiles) {
+                    Files.deleteIfExists(outputFile);
+                }
+            }
+        }
+        runFfmpegForAllDestinations(tag, inputFile, durationMillis, outputFiles);
+        recordOutputs(fileProcess, outputFiles);
+    }
+
+    private void recordOutputs(FileProcess fileProcess, List<Path> outputFiles) {
+        for (Path outputFile : outputFiles) {
+            fileProcess.addOutput(outputFile);
+        }
+    }
+
+    /**
+     * Makes the retry of a failed track check its album directories on disk again.
+     */
+    private void invalidateAlbumDirectories(TrackMetadata metadata, String originalFileExtension) {
+        albums.invalidate(getTargetPath(metadata, Paths.get(config.getOriginalFormatDestination()), originalFileExtension).getParent());
+        for (Path outputFile : getOutputFiles(metadata)) {
+            albums.invalidate(outputFile.getParent());
+        }
+    }
+
+    @Override
+    public String getConfigurationFingerprint() {
+        StringBuilder fingerprint = new StringBuilder(getClass().getName());
+        fingerprint.append('|').append(config.getOriginalFormatDestination());
+        fingerprint.append('|').append(config.getAllowedInputFileExtensions());
+        for (AudioManagerConfiguration.OutputDestination destination : config.getOutputDestinations()) {
+            fingerprint.append('|').append(destination.getDirectory())
+                       .append(',').append(destination.getConversionOptions())
+                       .append(',').append(destination.getFileExtension());
+        }
+        return UUID.nameUUIDFromBytes(fingerprint.toString().getBytes(StandardCharsets.UTF_8)).toString();
     }
 
     @Override
@@ -141,20 +288,19 @@ public class AudioManager implements FileProcessor {
         log.trace("--> processFile(" + fileProcess + ")");
         if (isAllowedInputFileExtension(fileProcess)) {
             log.debug("--- processFile(): Processing file: " + fileProcess);
+            TrackMetadata metadata = null;
+            String extension = null;
             try {
-                AudioFile f = AudioFileIO.read(fileProcess.getTempFilePath().toFile());
+                extension = fileUtil.getExtension(fileProcess.getPath());
+                AudioFile f = readAudioFile(fileProcess);
                 Tag tag = f.getTag();
-                fixTags(fileProcess.getTempFilePath());
-                copyLosslessFileToTarget(tag, fileProcess.getTempFilePath(), fileUtil.getExtension(fileProcess.getPath()));
-
-                for (AudioManagerConfiguration.OutputDestination destination : config.getOutputDestinations()) {
-                    runFfmpeg(tag
-                             ,fileProcess.getTempFilePath()
-                             ,getTargetPath(tag, Paths.get(destination.getDirectory()), destination.getFileExtension())
-                             ,destination.getConversionOptions());
-                }
+                metadata = TrackMetadata.fromTag(tag);
+                fixTags(f, metadata);
+                copyLosslessFileToTarget(fileProcess, tag, metadata, fileProcess.getTempFilePath(), extension);
+                transcode(fileProcess, tag, metadata, fileProcess.getTempFilePath(), f.getAudioHeader().getTrackLength() * 1000L);
             }
             catch (Throwable t) {
+                if (metadata != null) invalidateAlbumDirectories(metadata, extension);
                 throw new RuntimeException(t);
             }
         }
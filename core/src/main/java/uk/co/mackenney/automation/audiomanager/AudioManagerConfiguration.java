@@ -66,6 +66,32 @@ public class AudioManagerConfiguration {
         return outputDestinations;
     }
 
+    /**
+     * When set, all output destinations are written by one ffmpeg process which decodes the input once.
+     */
+    private boolean singleDecode;
+
+    public boolean isSingleDecode() {
+        return singleDecode;
+    }
+
+    public void setSingleDecode(boolean singleDecode) {
+        this.singleDecode = singleDecode;
+    }
+
+    private int albumCacheSize = 10000;
+
+    /**
+     * Number of album directories remembered as created and holding artwork.
+     */
+    public int getAlbumCacheSize() {
+        return albumCacheSize;
+    }
+
+    public void setAlbumCacheSize(int albumCacheSize) {
+        this.albumCacheSize = albumCacheSize;
+    }
+
     @PostConstruct
     public void validateParameters() {
 
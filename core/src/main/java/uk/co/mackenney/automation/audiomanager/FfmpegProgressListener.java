@@ -0,0 +1,58 @@
+package uk.co.mackenney.automation.audiomanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.mackenney.automation.util.HostUtil;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Follows the {@code time=} position ffmpeg reports on stderr while encoding, and logs progress
+ * against the track length in steps of ten percent.
+ */
+class FfmpegProgressListener implements HostUtil.OutputListener {
+    private static Logger log = LoggerFactory.getLogger(FfmpegProgressListener.class);
+
+    private static final Pattern TIME_PATTERN = Pattern.compile("time=(\\d+):(\\d{2}):(\\d{2})(?:\\.(\\d+))?");
+    private static final int REPORT_STEP_PERCENT = 10;
+
+    private final String description;
+    private final long durationMillis;
+    private volatile long encodedMillis = 0;
+    private int reportedPercent = 0;
+
+    FfmpegProgressListener(String description, long durationMillis) {
+        this.description = description;
+        this.durationMillis = durationMillis;
+    }
+
+    static long parseTime(String line) {
+        Matcher matcher = TIME_PATTERN.matcher(line);
+        if (!matcher.find()) return -1;
+        long millis = (Long.parseLong(matcher.group(1)) * 3600 + Long.parseLong(matcher.group(2)) * 60 + Long.parseLong(matcher.group(3))) * 1000;
+        if (matcher.group(4) != null) {
+            String fraction = (matcher.group(4) + "00").substring(0, 3);
+            millis += Long.parseLong(fraction);
+        }
+        return millis;
+    }
+
+    public long getEncodedMillis() {
+        return encodedMillis;
+    }
+
+    @Override
+    public void onStderrLine(String line) {
+        long time = parseTime(line);
+        if (time < 0) return;
+        encodedMillis = time;
+        if (durationMillis > 0 && log.isDebugEnabled()) {
+            int percent = (int)Math.min(100, time * 100 / durationMillis);
+            if (percent >= reportedPercent + REPORT_STEP_PERCENT) {
+                reportedPercent = percent - percent % REPORT_STEP_PERCENT;
+                log.debug("--- " + description + ": " + percent + "% encoded");
+            }
+        }
+    }
+}
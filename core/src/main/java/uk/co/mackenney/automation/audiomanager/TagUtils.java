@@ -1,7 +1,7 @@
 package uk.co.mackenney.automation.audiomanager;
 
-import java.io.File;
 import java.util.Iterator;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 import org.jaudiotagger.tag.FieldKey;
@@ -11,6 +11,9 @@ import org.jaudiotagger.tag.TagField;
 public class TagUtils implements AudioManagerConstants {
     private static Logger log = Logger.getLogger(TagUtils.class);
 
+    private static final Pattern DISC_SUFFIX_PATTERN = Pattern.compile(",[\\s]*Disc[\\s]*[0-9]+");
+    private static final Pattern SINGLE_TAG_PATTERN = Pattern.compile(Pattern.quote(SINGLE_TAG));
+
 
     public static void dumpTags(Tag tag) {
         for (Iterator<TagField> fields = tag.getFields(); fields.hasNext(); ) {
@@ -52,7 +55,12 @@ public class TagUtils implements AudioManagerConstants {
     }
 
     public static String getAlbum(Tag tag) {
-        return tag.getFirst(FieldKey.ALBUM).replaceAll(",[\\s]*Disc[\\s]*[0-9]+", "").replaceAll(SINGLE_TAG.replace("(", "\\(").replace(")","\\)"),"").trim();
+        return cleanAlbum(tag.getFirst(FieldKey.ALBUM));
+    }
+
+    static String cleanAlbum(String album) {
+        String result = DISC_SUFFIX_PATTERN.matcher(album).replaceAll("");
+        return SINGLE_TAG_PATTERN.matcher(result).replaceAll("").trim();
     }
 
     private static int[] getPartOfSet(Tag tag) {
@@ -89,88 +97,36 @@ public class TagUtils implements AudioManagerConstants {
         return tag.getFirst(FieldKey.TITLE);
     }
 
-    private static String stripIllegalFileChars(String input) {
-        log.debug("--> stripIllegalFileChars(" + input + ")");
-        String result = input.replace(":", ";")
-                .replace("\"", ".")
-                .replace("<", ".")
-                .replace(">", ".")
-                .replace("/", ".")
-                .replace("\\", ".")
-                .replace("|", ".")
-                .replace("?", ".")
-                .replace("*", ".")
-                .replaceAll("\\.\\.*", "\\.");
-        log.debug("--- stripIllegalFileChars: result: " + result);
-        log.debug("<-- stripIllegalFileChars()");
-        return result;
+    /**
+     * Replaces characters which are not allowed in file names, in a single pass: colons become
+     * semicolons, the others become dots, and runs of dots are collapsed into one.
+     */
+    static String stripIllegalFileChars(String input) {
+        StringBuilder result = new StringBuilder(input.length());
+        for (int i=0; i<input.length(); i++) {
+            char c = input.charAt(i);
+            switch (c) {
+                case ':':
+                    result.append(';');
+                    continue;
+                case '"': case '<': case '>': case '/': case '\\': case '|': case '?': case '*':
+                    c = '.';
+                    break;
+                default:
+                    break;
+            }
+            if (c == '.' && result.length() > 0 && result.charAt(result.length() - 1) == '.') continue;
+            result.append(c);
+        }
+        return result.toString();
     }
 
     public static String getTargetFilename(Tag tag) {
-        log.debug("--> getTargetFilename(" + tag + ")");
-        log.debug("--- getTargetFilename(): Determining target file name from tag information");
-        StringBuffer targetFileName = new StringBuffer();
-        if (TagUtils.isMultiDisc(tag)) {
-            log.debug("--- getTargetFilename(): Multi disc album, appending disc number");
-            targetFileName.append("Disc");
-            targetFileName.append(TagUtils.getDiscNumber(tag));
-            targetFileName.append("-");
-        }
-        log.debug("--- getTargetFilename(): Appending track number");
-        targetFileName.append(TagUtils.getTrackNumber(tag) < 10 ? "0" + TagUtils.getTrackNumber(tag) : TagUtils
-                .getTrackNumber(tag));
-        targetFileName.append("-");
-        if (TagUtils.isCompilation(tag) || TagUtils.isSoundtrack(tag)) {
-            log.debug("--- getTargetFilename(): Compilation album, appending artist");
-            targetFileName.append(stripIllegalFileChars(TagUtils.getArtist(tag)));
-            targetFileName.append("-");
-        }
-        log.debug("--- getTargetFilename(): Appending track name");
-        targetFileName.append(stripIllegalFileChars(TagUtils.getTrackName(tag)));
-
-        log.debug("<-- getTargetFilename() returns " + targetFileName.toString());
-        return targetFileName.toString();
+        return TrackMetadata.fromTag(tag).getTargetFilename();
     }
 
     public static String getTargetPath(Tag tag) {
-        log.debug("--> getTargetPath(" + tag + ")");
-        // Determine target folder
-        StringBuffer targetPath = new StringBuffer();
-
-        if (TagUtils.isChildrens(tag)) {
-            log.debug("--- getTargetPath(): Detected childrens file");
-            targetPath.append(KIDS_FOLDER);
-            targetPath.append(File.separator);
-        }
-        else if (TagUtils.isSoundtrack(tag)) {
-            log.debug("--- getTargetPath(): Soundtrack");
-            targetPath.append(ALBUMS_FOLDER);
-            targetPath.append(File.separator);
-            targetPath.append(stripIllegalFileChars("Soundtrack"));
-            targetPath.append(File.separator);
-        }
-        else if (TagUtils.isCompilation(tag)) {
-            log.debug("--- getTargetPath(): Detected compilation");
-            targetPath.append(COMPILATIONS_FOLDER);
-            targetPath.append(File.separator);
-        }
-        else if (TagUtils.isSingle(tag)) {
-            log.debug("--- getTargetPath(): Detected CD Single");
-            targetPath.append(SINGLES_FOLDER);
-            targetPath.append(File.separator);
-            targetPath.append(stripIllegalFileChars(TagUtils.getAlbumArtist(tag)));
-            targetPath.append(File.separator);
-        }
-        else {
-            log.debug("--- getTargetPath(): Default - album");
-            targetPath.append(ALBUMS_FOLDER);
-            targetPath.append(File.separator);
-            targetPath.append(stripIllegalFileChars(TagUtils.getAlbumArtist(tag)));
-            targetPath.append(File.separator);
-        }
-        targetPath.append(stripIllegalFileChars(TagUtils.getAlbum(tag)));
-        log.debug("<-- getTargetPath() returns " + targetPath.toString());
-        return targetPath.toString();
+        return TrackMetadata.fromTag(tag).getTargetPath();
     }
 
 
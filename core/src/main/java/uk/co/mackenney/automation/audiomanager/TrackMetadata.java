@@ -0,0 +1,161 @@
+package uk.co.mackenney.automation.audiomanager;
+
+import org.jaudiotagger.tag.FieldKey;
+import org.jaudiotagger.tag.Tag;
+
+import java.io.File;
+
+/**
+ * Immutable snapshot of the tag values AudioManager needs, read from the tag in one pass.
+ * Classification is taken from the tags as found, before {@code fixTags} rewrites the album and
+ * album artist, and the target path and file name are built once when the snapshot is created.
+ */
+public final class TrackMetadata implements AudioManagerConstants {
+
+    private final int trackNumber;
+    private final int discNumber;
+    private final int totalDiscs;
+
+    private final boolean compilation;
+    private final boolean soundtrack;
+    private final boolean single;
+    private final boolean childrens;
+
+    private final String album;
+    private final String albumArtist;
+    private final String artist;
+    private final String title;
+
+    private final String targetPath;
+    private final String targetFilename;
+
+    private TrackMetadata(Tag tag) {
+        String genre = tag.getFirst(FieldKey.GENRE);
+        String rawAlbum = tag.getFirst(FieldKey.ALBUM);
+
+        this.compilation = TagUtils.isCompilation(tag);
+        this.soundtrack = "Soundtrack".equals(genre);
+        this.childrens = "Childrens".equals(genre);
+        this.single = rawAlbum.contains(SINGLE_TAG);
+
+        this.trackNumber = Integer.parseInt(tag.getFirst(FieldKey.TRACK));
+        this.totalDiscs = TagUtils.getTotalDiscs(tag);
+        this.discNumber = totalDiscs > 1 ? TagUtils.getDiscNumber(tag) : 1;
+
+        this.album = TagUtils.cleanAlbum(rawAlbum);
+        this.albumArtist = tag.getFirst(FieldKey.ALBUM_ARTIST);
+        this.artist = tag.getFirst(FieldKey.ARTIST);
+        this.title = tag.getFirst(FieldKey.TITLE);
+
+        this.targetPath = buildTargetPath();
+        this.targetFilename = buildTargetFilename();
+    }
+
+    public static TrackMetadata fromTag(Tag tag) {
+        return new TrackMetadata(tag);
+    }
+
+    private String buildTargetPath() {
+        StringBuilder path = new StringBuilder();
+        if (childrens) {
+            path.append(KIDS_FOLDER).append(File.separator);
+        }
+        else if (soundtrack) {
+            path.append(ALBUMS_FOLDER).append(File.separator).append("Soundtrack").append(File.separator);
+        }
+        else if (compilation) {
+            path.append(COMPILATIONS_FOLDER).append(File.separator);
+        }
+        else if (single) {
+            path.append(SINGLES_FOLDER).append(File.separator).append(TagUtils.stripIllegalFileChars(albumArtist)).append(File.separator);
+        }
+        else {
+            path.append(ALBUMS_FOLDER).append(File.separator).append(TagUtils.stripIllegalFileChars(albumArtist)).append(File.separator);
+        }
+        path.append(TagUtils.stripIllegalFileChars(album));
+        return path.toString();
+    }
+
+    private String buildTargetFilename() {
+        StringBuilder filename = new StringBuilder();
+        if (isMultiDisc()) {
+            filename.append("Disc").append(discNumber).append('-');
+        }
+        if (trackNumber < 10) filename.append('0');
+        filename.append(trackNumber).append('-');
+        if (compilation || soundtrack) {
+            filename.append(TagUtils.stripIllegalFileChars(artist)).append('-');
+        }
+        filename.append(TagUtils.stripIllegalFileChars(title));
+        return filename.toString();
+    }
+
+    public int getTrackNumber() {
+        return trackNumber;
+    }
+
+    public int getDiscNumber() {
+        return discNumber;
+    }
+
+    public int getTotalDiscs() {
+        return totalDiscs;
+    }
+
+    public boolean isMultiDisc() {
+        return totalDiscs > 1;
+    }
+
+    public boolean isCompilation() {
+        return compilation;
+    }
+
+    public boolean isSoundtrack() {
+        return soundtrack;
+    }
+
+    public boolean isSingle() {
+        return single;
+    }
+
+    public boolean isChildrens() {
+        return childrens;
+    }
+
+    /**
+     * Album title with any disc number and single marker removed.
+     */
+    public String getAlbum() {
+        return album;
+    }
+
+    public String getAlbumArtist() {
+        return albumArtist;
+    }
+
+    public String getArtist() {
+        return artist;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Directory for the track relative to a destination root, with illegal characters replaced.
+     */
+    public String getTargetPath() {
+        return targetPath;
+    }
+
+    /**
+     * File name for the track without an extension, with illegal characters replaced.
+     */
+    public String getTargetFilename() {
+        return targetFilename;
+    }
+
+    public String toString() {
+        return targetPath + File.separator + targetFilename;
+    }
+}
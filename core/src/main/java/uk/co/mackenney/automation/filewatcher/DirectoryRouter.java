@@ -0,0 +1,128 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trie of watched directories, one node per path component, which finds the processor for a file
+ * by longest-prefix match in time proportional to the depth of the file.  Where the deepest
+ * directory has include patterns which do not match the file name, the next shorter directory is
+ * tried.  Mappings for the same directory are tried in configuration order.
+ */
+public class DirectoryRouter {
+
+    /**
+     * A processor mapping as resolved for a file.
+     */
+    public static class Route {
+        private final Path directory;
+        private final String processorName;
+        private final FileProcessor processor;
+        private final List<PathMatcher> includes;
+
+        Route(Path directory, String processorName, FileProcessor processor, List<String> includePatterns) {
+            this.directory = directory;
+            this.processorName = processorName;
+            this.processor = processor;
+            List<PathMatcher> matchers = new ArrayList<>();
+            for (String pattern : includePatterns) {
+                matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+            }
+            this.includes = Collections.unmodifiableList(matchers);
+        }
+
+        public Path getDirectory() {
+            return directory;
+        }
+
+        public String getProcessorName() {
+            return processorName;
+        }
+
+        public FileProcessor getProcessor() {
+            return processor;
+        }
+
+        boolean includes(Path fileName) {
+            if (includes.isEmpty()) return true;
+            for (PathMatcher matcher : includes) {
+                if (matcher.matches(fileName)) return true;
+            }
+            return false;
+        }
+    }
+
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private final List<Route> routes = new ArrayList<>();
+    }
+
+    private final Node root = new Node();
+    private final List<Path> directories = new ArrayList<>();
+
+    private static String rootKey(Path path) {
+        return path.getRoot() == null ? "" : path.getRoot().toString();
+    }
+
+    public void add(Path directory, String processorName, FileProcessor processor, List<String> includePatterns) {
+        Path normalized = directory.toAbsolutePath().normalize();
+        Node node = root.children.computeIfAbsent(rootKey(normalized), k -> new Node());
+        for (Path component : normalized) {
+            node = node.children.computeIfAbsent(component.toString(), k -> new Node());
+        }
+        node.routes.add(new Route(normalized, processorName, processor, includePatterns));
+        if (!directories.contains(normalized)) directories.add(normalized);
+    }
+
+    /**
+     * Directories in the order they were configured.
+     */
+    public List<Path> getDirectories() {
+        return Collections.unmodifiableList(directories);
+    }
+
+    /**
+     * Collects the nodes with routes along the path of the file, shallowest first.
+     */
+    private List<Node> matchingNodes(Path file) {
+        List<Node> result = new ArrayList<>(4);
+        Path normalized = file.toAbsolutePath().normalize();
+        Node node = root.children.get(rootKey(normalized));
+        if (node == null) return result;
+        for (Path component : normalized) {
+            node = node.children.get(component.toString());
+            if (node == null) break;
+            if (!node.routes.isEmpty()) result.add(node);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the route of the deepest watched directory containing the file whose include
+     * patterns accept it, or null if there is none.
+     */
+    public Route route(Path file) {
+        List<Node> nodes = matchingNodes(file);
+        Path fileName = file.getFileName();
+        for (int i=nodes.size() - 1; i>=0; i--) {
+            for (Route route : nodes.get(i).routes) {
+                if (route.includes(fileName)) return route;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the deepest watched directory containing the file, regardless of include patterns.
+     */
+    public Path locateDirectory(Path file) {
+        List<Node> nodes = matchingNodes(file);
+        return nodes.isEmpty() ? null : nodes.get(nodes.size() - 1).routes.get(0).getDirectory();
+    }
+}
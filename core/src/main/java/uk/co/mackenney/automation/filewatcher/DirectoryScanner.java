@@ -0,0 +1,114 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+/**
+ * Walks directory trees on a fork-join pool, one task per directory, handing each directory and
+ * file to the visitor as soon as it is found rather than after the whole walk.  Logs throughput
+ * while large trees are being scanned and when each scan completes.
+ */
+public class DirectoryScanner {
+    private static Logger log = LoggerFactory.getLogger(DirectoryScanner.class);
+
+    private static final long PROGRESS_INTERVAL_DIRECTORIES = 10000;
+
+    public interface Visitor {
+        public void visitDirectory(Path directory) throws IOException;
+        public void visitFile(Path file);
+    }
+
+    private final ForkJoinPool pool;
+    private final Visitor visitor;
+
+    public DirectoryScanner(int parallelism, Visitor visitor) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.visitor = visitor;
+    }
+
+    private class ScanStatistics {
+        private final Path start;
+        private final long startNanos = System.nanoTime();
+        private final AtomicLong directories = new AtomicLong();
+        private final AtomicLong files = new AtomicLong();
+
+        ScanStatistics(Path start) {
+            this.start = start;
+        }
+
+        private String summary() {
+            double seconds = Math.max((System.nanoTime() - startNanos) / 1e9, 0.001);
+            return String.format("%d directories, %d files in %.1fs (%.0f directories/s, %.0f files/s)",
+                    directories.get(), files.get(), seconds, directories.get() / seconds, files.get() / seconds);
+        }
+    }
+
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final ScanStatistics statistics;
+
+        ScanTask(Path directory, ScanStatistics statistics) {
+            this.directory = directory;
+            this.statistics = statistics;
+        }
+
+        @Override
+        protected void compute() {
+            List<ScanTask> subdirectories = new ArrayList<>();
+            try {
+                visitor.visitDirectory(directory);
+                if (statistics.directories.incrementAndGet() % PROGRESS_INTERVAL_DIRECTORIES == 0) {
+                    log.info("Scanning " + statistics.start + ": " + statistics.summary());
+                }
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                    for (Path entry : entries) {
+                        if (Files.isDirectory(entry, NOFOLLOW_LINKS)) {
+                            subdirectories.add(new ScanTask(entry, statistics));
+                        }
+                        else if (Files.isRegularFile(entry, NOFOLLOW_LINKS)) {
+                            statistics.files.incrementAndGet();
+                            visitor.visitFile(entry);
+                        }
+                    }
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                log.error("Unable to scan directory " + directory, e);
+            }
+            invokeAll(subdirectories);
+        }
+    }
+
+    /**
+     * Starts scanning the tree below the given directory and returns without waiting for it.
+     */
+    public ForkJoinTask<?> scan(final Path start) {
+        log.trace("--> scan(" + start + ")");
+        return pool.submit(() -> {
+            ScanStatistics statistics = new ScanStatistics(start);
+            new ScanTask(start, statistics).invoke();
+            if (statistics.directories.get() > 1) {
+                log.info("Finished scanning " + start + ": " + statistics.summary());
+            }
+        });
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
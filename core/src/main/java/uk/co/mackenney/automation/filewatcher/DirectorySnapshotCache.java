@@ -0,0 +1,118 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+/**
+ * Last known state of each watched directory: its own modification time, and the name, size
+ * and modification time of its entries.  A directory is only listed again when its modification
+ * time has moved on, which happens whenever an entry is created, deleted or renamed, so a
+ * reconciliation pass costs one stat per directory when nothing has changed.
+ */
+class DirectorySnapshotCache {
+    private static Logger log = LoggerFactory.getLogger(DirectorySnapshotCache.class);
+
+    private static class DirectorySnapshot {
+        private long lastModified;
+        private Map<String, long[]> entries;
+
+        DirectorySnapshot(long lastModified) {
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final ConcurrentMap<Path, DirectorySnapshot> snapshots = new ConcurrentHashMap<>();
+
+    private static long lastModified(Path path) throws IOException {
+        return Files.getLastModifiedTime(path, NOFOLLOW_LINKS).toMillis();
+    }
+
+    /**
+     * Records the modification time of a newly watched directory.  Its entries are read on the
+     * first listing, as the scan which registered it already queued them.
+     */
+    void registered(Path directory) {
+        try {
+            snapshots.putIfAbsent(directory, new DirectorySnapshot(lastModified(directory)));
+        }
+        catch (IOException ioe) {
+            log.debug("--- registered(): Unable to read " + directory + ": " + ioe);
+        }
+    }
+
+    void removed(Path directory) {
+        snapshots.remove(directory);
+    }
+
+    Collection<Path> getDirectories() {
+        return snapshots.keySet();
+    }
+
+    /**
+     * Lists the directory if it changed since the last snapshot, or always when forced, and adds
+     * the differences to the batch: new or changed files, new unwatched sub-directories, and
+     * entries which have gone.
+     */
+    void diff(Path directory, boolean force, WatchBatch batch) {
+        DirectorySnapshot snapshot = snapshots.get(directory);
+        if (snapshot == null) return;
+        synchronized (snapshot) {
+            try {
+                long lastModified = lastModified(directory);
+                if (!force && lastModified == snapshot.lastModified && snapshot.entries != null) return;
+
+                Map<String, long[]> entries = new HashMap<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                    for (Path entry : stream) {
+                        BasicFileAttributes attrs;
+                        try {
+                            attrs = Files.readAttributes(entry, BasicFileAttributes.class, NOFOLLOW_LINKS);
+                        }
+                        catch (NoSuchFileException nsfe) {
+                            continue;
+                        }
+                        String name = entry.getFileName().toString();
+                        if (attrs.isDirectory()) {
+                            if (!snapshots.containsKey(entry)) batch.change(entry, false);
+                        }
+                        else if (attrs.isRegularFile()) {
+                            long[] state = new long[] {attrs.size(), attrs.lastModifiedTime().toMillis()};
+                            entries.put(name, state);
+                            long[] previous = snapshot.entries == null ? null : snapshot.entries.get(name);
+                            if (previous == null || previous[0] != state[0] || previous[1] != state[1]) {
+                                batch.change(entry, false);
+                            }
+                        }
+                    }
+                }
+                if (snapshot.entries != null) {
+                    for (String name : snapshot.entries.keySet()) {
+                        if (!entries.containsKey(name)) batch.change(directory.resolve(name), true);
+                    }
+                }
+                snapshot.entries = entries;
+                snapshot.lastModified = lastModified;
+            }
+            catch (NoSuchFileException nsfe) {
+                snapshots.remove(directory);
+            }
+            catch (IOException ioe) {
+                log.warn("Unable to reconcile directory " + directory, ioe);
+            }
+        }
+    }
+}
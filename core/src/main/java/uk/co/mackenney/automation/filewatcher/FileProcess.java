@@ -1,13 +1,14 @@
 package uk.co.mackenney.automation.filewatcher;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.file.Path;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 
 public class FileProcess {
@@ -17,20 +18,55 @@ public class FileProcess {
     /**
      * PENDING: File has been detected, but may still have open file handles
      * READY_TO_PROCESS: File no longer has open file handles
+     * QUEUED: The file has been admitted to the processor scheduler and is waiting for a thread
      * PROCESSING: The file processor thread has accepted the file and is processing it
      * PROCESSED: The file processor thread has completed processing and the file is ready to delete.
+     * ERROR: The file processor failed and an error report is due.
      */
-    private enum FileProcessStatus {PENDING, READY_TO_PROCESS, PROCESSING, PROCESSED, ERROR}
+    public enum FileProcessStatus {PENDING, READY_TO_PROCESS, QUEUED, PROCESSING, PROCESSED, ERROR}
 
     private Path filePath;
     private Path tempFilePath;
-    private Map<Long, String> logMessages = new LinkedHashMap<>();
-    private FileProcessStatus status;
+    private FileStager.StagingStrategy stagingStrategy;
+    private final FileProcessEventLog events = new FileProcessEventLog();
+    private volatile FileProcessStatus status;
+    private FileProcessListener listener;
+    private DirectoryRouter.Route route;
+    private long observedSize = -1;
+    private long observedLastModified = -1;
+    private List<Path> outputs = Collections.synchronizedList(new ArrayList<>());
+    private long fileSize = -1;
+    private long fileLastModified = -1;
+    private volatile long id;
+    // Status under which FileProcessIndex last filed this process, guarded by the process monitor
+    FileProcessStatus indexedStatus;
+    private final long[] statusNanos = new long[FileProcessStatus.values().length];
+
+    private static final AtomicReferenceFieldUpdater<FileProcess, FileProcessStatus> STATUS =
+            AtomicReferenceFieldUpdater.newUpdater(FileProcess.class, FileProcessStatus.class, "status");
 
     public FileProcess(Path filePath) {
+        this(filePath, null);
+    }
+
+    /**
+     * Creates a file process whose status transitions are pushed to the given listener, which
+     * is notified of the initial PENDING status as well.
+     */
+    public FileProcess(Path filePath, FileProcessListener listener) {
         this.filePath = filePath;
         this.status = FileProcessStatus.PENDING;
-        log("FileProcess Created");
+        this.statusNanos[FileProcessStatus.PENDING.ordinal()] = System.nanoTime();
+        this.listener = listener;
+        events.record(FileProcessEventLog.CREATED, 0);
+    }
+
+    /**
+     * Announces the initial status to the listener.  Kept separate from the constructor so that a
+     * caller can discard duplicate instances before anything is queued for them.
+     */
+    public void publish() {
+        if (listener != null) listener.statusChanged(this);
     }
 
     public int hashCode() {
@@ -44,6 +80,17 @@ public class FileProcess {
         else return false;
     }
 
+    /**
+     * Sequence id given when the file was first tracked, used as the cursor by the status endpoints.
+     */
+    public long getId() {
+        return id;
+    }
+
+    void setId(long id) {
+        this.id = id;
+    }
+
     public Path getTempFilePath() {
         return tempFilePath;
     }
@@ -52,14 +99,82 @@ public class FileProcess {
         this.tempFilePath = tempFilePath;
     }
 
-    public Map<Long,String> getLogMessages() {
-        return logMessages;
+    /**
+     * Records the size and modification time seen by a readiness check.
+     *
+     * @return true if both are unchanged since the previous observation
+     */
+    public boolean observe(long size, long lastModified) {
+        boolean unchanged = size == observedSize && lastModified == observedLastModified;
+        observedSize = size;
+        observedLastModified = lastModified;
+        return unchanged;
+    }
+
+    /**
+     * The processor mapping resolved for this file when it was detected.
+     */
+    @JsonIgnore
+    public DirectoryRouter.Route getRoute() {
+        return route;
+    }
+
+    public void setRoute(DirectoryRouter.Route route) {
+        this.route = route;
+    }
+
+    public FileStager.StagingStrategy getStagingStrategy() {
+        return stagingStrategy;
+    }
+
+    public void setStagingStrategy(FileStager.StagingStrategy stagingStrategy) {
+        this.stagingStrategy = stagingStrategy;
+        events.record(FileProcessEventLog.STAGED, stagingStrategy.ordinal());
+    }
+
+    /**
+     * Records a file written by the processor, so that identical input can later be recognised
+     * as already produced.
+     */
+    public void addOutput(Path output) {
+        outputs.add(output);
+    }
+
+    public List<Path> getOutputs() {
+        return outputs;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getFileLastModified() {
+        return fileLastModified;
+    }
+
+    /**
+     * Records the size and modification time of the input file, which identify it in the journal.
+     */
+    public void setFileAttributes(long fileSize, long fileLastModified) {
+        this.fileSize = fileSize;
+        this.fileLastModified = fileLastModified;
+    }
+
+    /**
+     * The recorded events, oldest first, formatted on each call.
+     */
+    public List<String> getLogMessages() {
+        return events.format(this);
     }
 
     public Path getPath() {
         return filePath;
     }
 
+    public FileProcessStatus getStatus() {
+        return status;
+    }
+
     public boolean isPending() {
         return this.status == FileProcessStatus.PENDING;
     }
@@ -68,6 +183,10 @@ public class FileProcess {
         return this.status == FileProcessStatus.READY_TO_PROCESS;
     }
 
+    public boolean isQueued() {
+        return this.status == FileProcessStatus.QUEUED;
+    }
+
     public boolean isProcessing() {
         return this.status == FileProcessStatus.PROCESSING;
     }
@@ -79,19 +198,57 @@ public class FileProcess {
     public boolean isError() { return this.status == FileProcessStatus.ERROR;  }
 
     public void log(String message) {
-        this.logMessages.put(System.currentTimeMillis(), message);
+        events.message(message);
+    }
+
+    /**
+     * System.nanoTime() when the file last entered the status, or zero if it never has.
+     */
+    public long getStatusNanos(FileProcessStatus status) {
+        return statusNanos[status.ordinal()];
     }
 
     private void setStatus(FileProcessStatus status) {
         this.status = status;
-        log("Changed to status " + status);
-        log.trace(this.toString());
+        statusChanged(status);
+    }
+
+    private void statusChanged(FileProcessStatus status) {
+        this.statusNanos[status.ordinal()] = System.nanoTime();
+        events.record(FileProcessEventLog.STATUS_CHANGED, status.ordinal());
+        if (log.isTraceEnabled()) log.trace(this.toString());
+        if (listener != null) listener.statusChanged(this);
+    }
+
+    /**
+     * Moves to the next status only if the file is still in the expected one, so that two threads
+     * cannot both act on the same transition.
+     *
+     * @return false if the status had already changed
+     */
+    public boolean transition(FileProcessStatus expected, FileProcessStatus next) {
+        if (!STATUS.compareAndSet(this, expected, next)) return false;
+        statusChanged(next);
+        return true;
+    }
+
+    /**
+     * Claims a queued file for a processor thread.
+     *
+     * @return false if the file is no longer queued
+     */
+    public boolean claimProcessing() {
+        return transition(FileProcessStatus.QUEUED, FileProcessStatus.PROCESSING);
     }
 
     public void setReadyToProcess() {
         setStatus(FileProcessStatus.READY_TO_PROCESS);
     }
 
+    public void setQueued() {
+        setStatus(FileProcessStatus.QUEUED);
+    }
+
     public void setProcessing() {
         setStatus(FileProcessStatus.PROCESSING);
     }
@@ -107,14 +264,10 @@ public class FileProcess {
     }
 
     public String toLogString() {
-        StringBuffer buffer = new StringBuffer();
+        StringBuilder buffer = new StringBuilder();
         buffer.append(toString());
-        for (Long time : logMessages.keySet()) {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss");
-            buffer.append("\n");
-            buffer.append(sdf.format(new Date(time)));
-            buffer.append(":  ");
-            buffer.append(logMessages.get(time));
+        for (String line : events.format(this)) {
+            buffer.append("\n").append(line);
         }
         return buffer.toString();
     }
@@ -0,0 +1,46 @@
+package uk.co.mackenney.automation.filewatcher;
+
+/**
+ * A status transition of a tracked file, as sent to event stream subscribers.
+ */
+public class FileProcessEvent {
+    private final long sequence;
+    private final long id;
+    private final String path;
+    private final FileProcess.FileProcessStatus status;
+    private final long timestamp;
+
+    public FileProcessEvent(long sequence, FileProcess process) {
+        this.sequence = sequence;
+        this.id = process.getId();
+        this.path = process.getPath().toString();
+        this.status = process.getStatus();
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Position in the stream of all transitions, used to resume after a reconnect.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Sequence id of the file, as used by the status endpoint.
+     */
+    public long getId() {
+        return id;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public FileProcess.FileProcessStatus getStatus() {
+        return status;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -0,0 +1,114 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded history of what happened to a file, kept as parallel primitive arrays of timestamp, event
+ * code and argument.  Only free-form messages hold a string; status changes and staging are stored
+ * as codes and formatted when the history is read, for an error report or the status endpoint.
+ *
+ * The arrays start small and double up to {@link #CAPACITY}, after which the oldest events are
+ * overwritten.
+ */
+class FileProcessEventLog {
+    static final int CAPACITY = 32;
+    private static final int INITIAL_CAPACITY = 4;
+
+    static final byte CREATED = 0;
+    static final byte STATUS_CHANGED = 1;
+    static final byte STAGED = 2;
+    static final byte MESSAGE = 3;
+
+    // Timestamps come from System.nanoTime(), and are placed on the wall clock relative to these
+    private static final long EPOCH_MILLIS = System.currentTimeMillis();
+    private static final long EPOCH_NANOS = System.nanoTime();
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private long[] times = new long[INITIAL_CAPACITY];
+    private byte[] codes = new byte[INITIAL_CAPACITY];
+    private long[] args = new long[INITIAL_CAPACITY];
+    private String[] messages;
+    private int next = 0;
+    private int size = 0;
+    private long discarded = 0;
+
+    synchronized void record(byte code, long arg) {
+        append(code, arg, null);
+    }
+
+    synchronized void message(String message) {
+        append(MESSAGE, 0, message);
+    }
+
+    private void append(byte code, long arg, String message) {
+        if (size == times.length && times.length < CAPACITY) grow();
+        if (size == times.length) {
+            discarded++;
+        }
+        else {
+            size++;
+        }
+        times[next] = System.nanoTime();
+        codes[next] = code;
+        args[next] = arg;
+        if (message != null && messages == null) messages = new String[times.length];
+        if (messages != null) messages[next] = message;
+        next = (next + 1) % times.length;
+    }
+
+    private void grow() {
+        // Only called while the arrays are full and unwrapped, so the order is unchanged
+        int capacity = Math.min(CAPACITY, times.length * 2);
+        long[] newTimes = new long[capacity];
+        byte[] newCodes = new byte[capacity];
+        long[] newArgs = new long[capacity];
+        System.arraycopy(times, 0, newTimes, 0, size);
+        System.arraycopy(codes, 0, newCodes, 0, size);
+        System.arraycopy(args, 0, newArgs, 0, size);
+        if (messages != null) {
+            String[] newMessages = new String[capacity];
+            System.arraycopy(messages, 0, newMessages, 0, size);
+            messages = newMessages;
+        }
+        times = newTimes;
+        codes = newCodes;
+        args = newArgs;
+        next = size;
+    }
+
+    private static String describe(byte code, long arg, String message, FileProcess process) {
+        switch (code) {
+            case CREATED:
+                return "FileProcess Created";
+            case STATUS_CHANGED:
+                return "Changed to status " + FileProcess.FileProcessStatus.values()[(int)arg];
+            case STAGED:
+                return "Staged temporary file " + process.getTempFilePath() + " using " + FileStager.StagingStrategy.values()[(int)arg];
+            default:
+                return message;
+        }
+    }
+
+    /**
+     * Formats the events held, oldest first, as "time:  description" lines.
+     */
+    synchronized List<String> format(FileProcess process) {
+        List<String> lines = new ArrayList<>(size + 1);
+        if (discarded > 0) lines.add(discarded + " earlier events discarded");
+        int start = (next - size + times.length) % times.length;
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            int index = (start + i) % times.length;
+            long millis = EPOCH_MILLIS + (times[index] - EPOCH_NANOS) / 1000000;
+            line.setLength(0);
+            TIME_FORMAT.formatTo(Instant.ofEpochMilli(millis), line);
+            line.append(":  ").append(describe(codes[index], args[index], messages == null ? null : messages[index], process));
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,233 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes every status transition to server-sent event subscribers.
+ *
+ * Recent transitions are kept in a ring of {@code fileWatcher.eventHistorySize} events, so that a
+ * subscriber reconnecting with the last sequence number it saw is sent what it missed.  If that is
+ * older than the ring, or is not one this run has issued, it is sent a "reset" event and should
+ * reload /filewatcher/status.  Sequence numbers start from the startup time in microseconds, so
+ * those issued before a restart are always older than the ring.
+ *
+ * Each subscriber has its own queue of at most {@code fileWatcher.eventBufferSize} events, drained
+ * by at most one task at a time on a pool which grows with the subscribers, so a client which stops
+ * reading only blocks its own drain.  When a slow subscriber's queue is full the oldest event is
+ * dropped, and a "dropped" event with the number lost is sent ahead of the next transition, so a
+ * slow client never holds up the pipeline or the other subscribers.
+ */
+@Component
+public class FileProcessEventPublisher implements PublicMetrics {
+    private static Logger log = LoggerFactory.getLogger(FileProcessEventPublisher.class);
+
+    private static final int DRAIN_BATCH = 256;
+
+    @Autowired
+    private FileWatcherConfiguration config;
+
+    private FileProcessEvent[] history;
+    private long firstSequence;
+    private long sequence;
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong droppedTotal = new AtomicLong();
+    private ExecutorService drainExecutor;
+
+    private class Subscriber {
+        private final SseEmitter emitter;
+        private final ArrayDeque<FileProcessEvent> buffer = new ArrayDeque<>();
+        private long dropped = 0;
+        private boolean reset = false;
+        private boolean draining = false;
+        private volatile boolean closed = false;
+
+        Subscriber(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        /**
+         * Queues the event, dropping the oldest when full.  Returns true if a drain needs scheduling.
+         */
+        synchronized boolean offer(FileProcessEvent event) {
+            if (closed) return false;
+            if (buffer.size() >= config.getEventBufferSize()) {
+                buffer.poll();
+                dropped++;
+                droppedTotal.incrementAndGet();
+            }
+            buffer.add(event);
+            return startDraining();
+        }
+
+        /**
+         * Queues a "reset" ahead of any events.  Returns true if a drain needs scheduling.
+         */
+        synchronized boolean requestReset() {
+            if (closed) return false;
+            reset = true;
+            return startDraining();
+        }
+
+        private boolean startDraining() {
+            if (draining) return false;
+            draining = true;
+            return true;
+        }
+
+        void drain() {
+            try {
+                while (true) {
+                    List<FileProcessEvent> batch = new ArrayList<>();
+                    long droppedNow;
+                    boolean resetNow;
+                    synchronized (this) {
+                        while (batch.size() < DRAIN_BATCH && !buffer.isEmpty()) {
+                            batch.add(buffer.poll());
+                        }
+                        droppedNow = dropped;
+                        dropped = 0;
+                        resetNow = reset;
+                        reset = false;
+                        if (batch.isEmpty() && droppedNow == 0 && !resetNow) {
+                            draining = false;
+                            return;
+                        }
+                    }
+                    if (resetNow) emitter.send(SseEmitter.event().name("reset").data(Collections.singletonMap("reason", "history exceeded")));
+                    if (droppedNow > 0) emitter.send(SseEmitter.event().name("dropped").data(Collections.singletonMap("count", droppedNow)));
+                    for (FileProcessEvent event : batch) {
+                        emitter.send(SseEmitter.event().id(Long.toString(event.getSequence())).name("transition").data(event));
+                    }
+                }
+            }
+            catch (Exception e) {
+                log.debug("--- drain(): Subscriber gone: " + e);
+                close();
+                emitter.completeWithError(e);
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+                buffer.clear();
+            }
+            subscribers.remove(this);
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        history = new FileProcessEvent[Math.max(1, config.getEventHistorySize())];
+        firstSequence = System.currentTimeMillis() * 1000;
+        sequence = firstSequence;
+        AtomicInteger count = new AtomicInteger();
+        // Sends block, so a fixed pool could be starved by clients which stop reading
+        drainExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "filewatcher-events-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void close() {
+        drainExecutor.shutdownNow();
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+            subscriber.emitter.complete();
+        }
+    }
+
+    private void schedule(Subscriber subscriber) {
+        drainExecutor.execute(subscriber::drain);
+    }
+
+    /**
+     * Records the current status of the process as the next event and queues it for every subscriber.
+     */
+    public void publish(FileProcess process) {
+        List<Subscriber> toDrain = null;
+        synchronized (this) {
+            FileProcessEvent event = new FileProcessEvent(++sequence, process);
+            history[(int)(event.getSequence() % history.length)] = event;
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.offer(event)) {
+                    if (toDrain == null) toDrain = new ArrayList<>();
+                    toDrain.add(subscriber);
+                }
+            }
+        }
+        if (toDrain != null) {
+            for (Subscriber subscriber : toDrain) {
+                schedule(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Opens a stream of transitions after the given sequence number, or of new transitions only when
+     * it is negative.
+     */
+    public SseEmitter subscribe(long after) {
+        final SseEmitter emitter = new SseEmitter(config.getEventStreamTimeout());
+        final Subscriber subscriber = new Subscriber(emitter);
+        emitter.onCompletion(subscriber::close);
+        emitter.onTimeout(subscriber::close);
+        boolean drain = false;
+        synchronized (this) {
+            if (after > sequence) {
+                // Issued before a restart, and the clock has since gone back
+                drain = subscriber.requestReset();
+            }
+            else if (after >= 0 && after < sequence) {
+                long oldest = Math.max(firstSequence + 1, sequence - history.length + 1);
+                if (after + 1 < oldest) {
+                    drain |= subscriber.requestReset();
+                    after = oldest - 1;
+                }
+                for (long s = after + 1; s <= sequence; s++) {
+                    drain |= subscriber.offer(history[(int)(s % history.length)]);
+                }
+            }
+            subscribers.add(subscriber);
+        }
+        log.debug("--- subscribe(): New subscriber after " + after + ", " + subscribers.size() + " subscribers");
+        if (drain) schedule(subscriber);
+        return emitter;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        long current;
+        synchronized (this) {
+            current = sequence;
+        }
+        metrics.add(new Metric<>("filewatcher.events.sequence", current));
+        metrics.add(new Metric<>("filewatcher.events.subscribers", subscribers.size()));
+        metrics.add(new Metric<>("filewatcher.events.dropped", droppedTotal.get()));
+        return metrics;
+    }
+}
@@ -0,0 +1,93 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracked files ordered by the sequence id given to each when it was first tracked, overall and per
+ * status, with a running count per status.  Queries walk the index for the requested status from a
+ * cursor, so a page costs the same however many files are tracked.
+ */
+public class FileProcessIndex {
+    private final AtomicLong sequence = new AtomicLong();
+    private final ConcurrentSkipListMap<Long, FileProcess> all = new ConcurrentSkipListMap<>();
+    private final Map<FileProcess.FileProcessStatus, ConcurrentSkipListMap<Long, FileProcess>> byStatus = new EnumMap<>(FileProcess.FileProcessStatus.class);
+    private final Map<FileProcess.FileProcessStatus, AtomicLong> counts = new EnumMap<>(FileProcess.FileProcessStatus.class);
+
+    public FileProcessIndex() {
+        for (FileProcess.FileProcessStatus status : FileProcess.FileProcessStatus.values()) {
+            byStatus.put(status, new ConcurrentSkipListMap<>());
+            counts.put(status, new AtomicLong());
+        }
+    }
+
+    /**
+     * Gives the file its sequence id.  Called before its first status is published.
+     */
+    void track(FileProcess process) {
+        long id = sequence.incrementAndGet();
+        process.setId(id);
+        all.put(id, process);
+    }
+
+    void statusChanged(FileProcess process) {
+        synchronized (process) {
+            // Ignore late transitions of files which are no longer tracked
+            if (!all.containsKey(process.getId())) return;
+            FileProcess.FileProcessStatus status = process.getStatus();
+            FileProcess.FileProcessStatus previous = process.indexedStatus;
+            if (previous == status) return;
+            if (previous != null) {
+                byStatus.get(previous).remove(process.getId());
+                counts.get(previous).decrementAndGet();
+            }
+            byStatus.get(status).put(process.getId(), process);
+            counts.get(status).incrementAndGet();
+            process.indexedStatus = status;
+        }
+    }
+
+    void untrack(FileProcess process) {
+        synchronized (process) {
+            if (all.remove(process.getId()) == null) return;
+            FileProcess.FileProcessStatus previous = process.indexedStatus;
+            if (previous != null) {
+                byStatus.get(previous).remove(process.getId());
+                counts.get(previous).decrementAndGet();
+                process.indexedStatus = null;
+            }
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (AtomicLong count : counts.values()) {
+            size += count.get();
+        }
+        return size;
+    }
+
+    public Map<FileProcess.FileProcessStatus, Long> getCounts() {
+        Map<FileProcess.FileProcessStatus, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<FileProcess.FileProcessStatus, AtomicLong> count : counts.entrySet()) {
+            result.put(count.getKey(), count.getValue().get());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Files with a sequence id greater than the cursor, in id order, optionally only those in the
+     * given status.  The iterator is weakly consistent: it never fails, and reflects some of the
+     * changes made while it is in use.
+     */
+    public Iterator<FileProcess> iterator(FileProcess.FileProcessStatus status, long after) {
+        ConcurrentNavigableMap<Long, FileProcess> source = status == null ? all : byStatus.get(status);
+        return source.tailMap(after, false).values().iterator();
+    }
+}
@@ -0,0 +1,303 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped record of FileProcess status transitions, keyed by path, size and
+ * modification time, so that a restart can carry on where the previous run stopped.
+ *
+ * Each record is written as
+ * {@code [int bodyLength][byte status][long size][long lastModified][path bytes][int crc32]}.
+ * The mapping is grown in chunks and the unused tail is zero filled, so replay stops at the first
+ * zero length or bad checksum, which is where a crash mid-write leaves the file.  The journal is
+ * periodically rewritten from the live entries to keep it compact.
+ *
+ * Disabled unless {@code fileWatcher.journalFile} is set.
+ */
+@Component
+public class FileProcessJournal {
+    private static Logger log = LoggerFactory.getLogger(FileProcessJournal.class);
+
+    private static final int MAGIC = 0x464A524E;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int RECORD_OVERHEAD = 4 + 1 + 8 + 8 + 4;
+    private static final long CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final byte REMOVED = 0;
+
+    /**
+     * Status as it was last recorded for a path, valid while the file keeps the same size and
+     * modification time.
+     */
+    public static class Entry {
+        private final FileProcess.FileProcessStatus status;
+        private final long size;
+        private final long lastModified;
+
+        Entry(FileProcess.FileProcessStatus status, long size, long lastModified) {
+            this.status = status;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public FileProcess.FileProcessStatus getStatus() {
+            return status;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    @Autowired
+    private FileWatcherConfiguration config;
+
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    private Path journalFile;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long appendedSinceSnapshot = 0;
+
+    private static byte code(FileProcess.FileProcessStatus status) {
+        switch (status) {
+            case PENDING: return 1;
+            case READY_TO_PROCESS: return 2;
+            case PROCESSING: return 3;
+            case PROCESSED: return 4;
+            case ERROR: return 5;
+            case QUEUED: return 6;
+            default: throw new IllegalArgumentException("No journal code for status " + status);
+        }
+    }
+
+    private static FileProcess.FileProcessStatus status(byte code) {
+        switch (code) {
+            case 1: return FileProcess.FileProcessStatus.PENDING;
+            case 2: return FileProcess.FileProcessStatus.READY_TO_PROCESS;
+            case 3: return FileProcess.FileProcessStatus.PROCESSING;
+            case 4: return FileProcess.FileProcessStatus.PROCESSED;
+            case 5: return FileProcess.FileProcessStatus.ERROR;
+            case 6: return FileProcess.FileProcessStatus.QUEUED;
+            default: return null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return journalFile != null;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (config.getJournalFile() == null || config.getJournalFile().isEmpty()) return;
+        journalFile = Paths.get(config.getJournalFile());
+        Files.createDirectories(journalFile.toAbsolutePath().getParent());
+        open();
+        int replayed = replay();
+        log.info("Journal " + journalFile + " replayed " + replayed + " records, " + entries.size() + " files tracked");
+        // Start from a compact file
+        appendedSinceSnapshot = replayed;
+        snapshot();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = Math.max(channel.size(), CHUNK_SIZE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+        }
+        buffer.position(HEADER_LENGTH);
+    }
+
+    /**
+     * Reads records from the current position until the end of the valid data, leaving the
+     * position where the next record will be appended.
+     */
+    private int replay() {
+        int count = 0;
+        CRC32 crc = new CRC32();
+        while (true) {
+            int start = buffer.position();
+            try {
+                int bodyLength = buffer.getInt();
+                if (bodyLength < RECORD_OVERHEAD - 8 || bodyLength > buffer.remaining() - 4) {
+                    buffer.position(start);
+                    break;
+                }
+                byte[] body = new byte[bodyLength];
+                buffer.get(body);
+                crc.reset();
+                crc.update(body);
+                if (buffer.getInt() != (int)crc.getValue()) {
+                    buffer.position(start);
+                    break;
+                }
+
+                ByteBuffer record = ByteBuffer.wrap(body);
+                byte code = record.get();
+                long size = record.getLong();
+                long lastModified = record.getLong();
+                Path path = Paths.get(new String(body, record.position(), record.remaining(), StandardCharsets.UTF_8));
+                FileProcess.FileProcessStatus status = status(code);
+                if (status == null) entries.remove(path);
+                else entries.put(path, new Entry(status, size, lastModified));
+                count++;
+            }
+            catch (BufferUnderflowException | IllegalArgumentException e) {
+                buffer.position(start);
+                break;
+            }
+        }
+        return count;
+    }
+
+    private void append(byte code, Path path, long size, long lastModified) {
+        byte[] pathBytes = path.toString().getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 1 + 8 + 8 + pathBytes.length;
+        ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        body.put(code).putLong(size).putLong(lastModified).put(pathBytes);
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        try {
+            ensureCapacity(4 + bodyLength + 4);
+            buffer.putInt(bodyLength);
+            buffer.put(body.array());
+            buffer.putInt((int)crc.getValue());
+            appendedSinceSnapshot++;
+        }
+        catch (IOException ioe) {
+            log.error("Unable to append to journal " + journalFile, ioe);
+        }
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (buffer.remaining() >= length) return;
+        int position = buffer.position();
+        long size = buffer.capacity() + Math.max(CHUNK_SIZE, length);
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.position(position);
+    }
+
+    /**
+     * Records the current status of the process.  Size and modification time are taken from the
+     * file while it is waiting to be processed, and carried forward after that, when a staged
+     * file may have been moved away.
+     */
+    public synchronized void record(FileProcess process) {
+        if (!isEnabled()) return;
+        if (process.isPending() || process.isReadyToProcess()) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(process.getPath(), BasicFileAttributes.class);
+                process.setFileAttributes(attrs.size(), attrs.lastModifiedTime().toMillis());
+            }
+            catch (IOException ioe) {
+                return;
+            }
+        }
+        Entry entry = new Entry(process.getStatus(), process.getFileSize(), process.getFileLastModified());
+        entries.put(process.getPath(), entry);
+        append(code(entry.getStatus()), process.getPath(), entry.getSize(), entry.getLastModified());
+    }
+
+    /**
+     * Forgets a path once its input file has been cleaned up.
+     */
+    public synchronized void remove(Path path) {
+        if (!isEnabled()) return;
+        if (entries.remove(path) != null) {
+            append(REMOVED, path, 0, 0);
+        }
+    }
+
+    /**
+     * Returns what was last recorded for the file, provided its size and modification time have
+     * not changed since, otherwise null.
+     */
+    public Entry recover(Path path, long size, long lastModified) {
+        if (!isEnabled()) return null;
+        Entry entry = entries.get(path);
+        if (entry == null || entry.getSize() != size || entry.getLastModified() != lastModified) return null;
+        return entry;
+    }
+
+    /**
+     * Rewrites the journal from the live entries and swaps it in atomically.  Entries for files
+     * which have since disappeared are dropped, except QUEUED and PROCESSING ones: a file staged
+     * by moving it is away from its path until it is processed, or restored after a restart.
+     */
+    @Scheduled(fixedDelayString="${fileWatcher.journalSnapshotInterval:60000}")
+    public void snapshot() throws IOException {
+        if (!isEnabled()) return;
+        synchronized (this) {
+            if (appendedSinceSnapshot == 0) return;
+        }
+        log.trace("--> snapshot()");
+        // Files are checked before taking the lock, so that recording is not held up by the checks
+        Map<Path, Entry> missing = new HashMap<>();
+        for (Map.Entry<Path, Entry> entry : entries.entrySet()) {
+            FileProcess.FileProcessStatus status = entry.getValue().getStatus();
+            if (status == FileProcess.FileProcessStatus.QUEUED || status == FileProcess.FileProcessStatus.PROCESSING) continue;
+            if (!Files.exists(entry.getKey())) missing.put(entry.getKey(), entry.getValue());
+        }
+        synchronized (this) {
+            // Only if nothing has been recorded for the file since it was checked
+            for (Map.Entry<Path, Entry> entry : missing.entrySet()) {
+                entries.remove(entry.getKey(), entry.getValue());
+            }
+            Path snapshotFile = journalFile.resolveSibling(journalFile.getFileName() + ".snapshot");
+            Files.deleteIfExists(snapshotFile);
+
+            FileChannel previousChannel = channel;
+            Path previousFile = journalFile;
+            journalFile = snapshotFile;
+            open();
+            for (Map.Entry<Path, Entry> entry : entries.entrySet()) {
+                append(code(entry.getValue().getStatus()), entry.getKey(), entry.getValue().getSize(), entry.getValue().getLastModified());
+            }
+            buffer.force();
+            Files.move(snapshotFile, previousFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            journalFile = previousFile;
+            previousChannel.close();
+            appendedSinceSnapshot = 0;
+            log.trace("<-- snapshot() " + entries.size() + " entries");
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (!isEnabled()) return;
+        buffer.force();
+        channel.close();
+    }
+}
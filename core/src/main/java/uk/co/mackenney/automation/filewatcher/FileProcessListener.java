@@ -0,0 +1,8 @@
+package uk.co.mackenney.automation.filewatcher;
+
+/**
+ * Receives every status transition of a {@link FileProcess}, on the thread that made the transition.
+ */
+public interface FileProcessListener {
+    public void statusChanged(FileProcess fileProcess);
+}
@@ -0,0 +1,32 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of the status endpoint.  Pass nextCursor as the "after" parameter to fetch the next
+ * page; it is null on the last one.
+ */
+public class FileProcessPage {
+    private final Map<FileProcess.FileProcessStatus, Long> counts;
+    private final List<FileProcessSnapshot> items;
+    private final Long nextCursor;
+
+    public FileProcessPage(Map<FileProcess.FileProcessStatus, Long> counts, List<FileProcessSnapshot> items, Long nextCursor) {
+        this.counts = counts;
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public Map<FileProcess.FileProcessStatus, Long> getCounts() {
+        return counts;
+    }
+
+    public List<FileProcessSnapshot> getItems() {
+        return items;
+    }
+
+    public Long getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,83 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Filter for the status endpoints: by status, by directory (files anywhere beneath it) and by
+ * processor mapping name.  Any of them may be left out.
+ */
+public class FileProcessQuery {
+    private final FileProcess.FileProcessStatus status;
+    private final Path directory;
+    private final Set<String> mappingRoutes;
+
+    public FileProcessQuery(FileProcess.FileProcessStatus status, String directory, String mapping, FileWatcherConfiguration config) {
+        this.status = status;
+        this.directory = directory == null ? null : Paths.get(directory).toAbsolutePath().normalize();
+        if (mapping == null) {
+            this.mappingRoutes = null;
+        }
+        else {
+            this.mappingRoutes = new HashSet<>();
+            for (FileWatcherConfiguration.ProcessorClassMapping candidate : config.getProcessorClassMappings()) {
+                if (mapping.equals(candidate.getName())) {
+                    mappingRoutes.add(routeKey(Paths.get(candidate.getDirectory()).toAbsolutePath().normalize(), candidate.getProcessor()));
+                }
+            }
+        }
+    }
+
+    private static String routeKey(Path directory, String processorName) {
+        return directory + "\u0000" + processorName;
+    }
+
+    public FileProcess.FileProcessStatus getStatus() {
+        return status;
+    }
+
+    public boolean matches(FileProcess process) {
+        if (status != null && process.getStatus() != status) return false;
+        if (directory != null && !process.getPath().startsWith(directory)) return false;
+        if (mappingRoutes != null) {
+            DirectoryRouter.Route route = process.getRoute();
+            if (route == null || !mappingRoutes.contains(routeKey(route.getDirectory(), route.getProcessorName()))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Matching files after the cursor, in sequence id order.
+     */
+    public Iterator<FileProcess> iterator(FileProcessIndex index, long after) {
+        final Iterator<FileProcess> source = index.iterator(status, after);
+        return new Iterator<FileProcess>() {
+            private FileProcess next = advance();
+
+            private FileProcess advance() {
+                while (source.hasNext()) {
+                    FileProcess candidate = source.next();
+                    if (matches(candidate)) return candidate;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public FileProcess next() {
+                if (next == null) throw new NoSuchElementException();
+                FileProcess result = next;
+                next = advance();
+                return result;
+            }
+        };
+    }
+}
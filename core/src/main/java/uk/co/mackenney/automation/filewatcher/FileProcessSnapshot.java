@@ -0,0 +1,79 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable copy of the parts of a {@link FileProcess} reported by the status endpoints, taken
+ * before serialization so that a response never reads a file while it changes.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class FileProcessSnapshot {
+    private final long id;
+    private final String path;
+    private final FileProcess.FileProcessStatus status;
+    private final String processor;
+    private final String directory;
+    private final Long fileSize;
+    private final FileStager.StagingStrategy stagingStrategy;
+    private final List<String> outputs;
+    private final List<String> logMessages;
+
+    public FileProcessSnapshot(FileProcess process, boolean includeLog) {
+        this.id = process.getId();
+        this.path = process.getPath().toString();
+        this.status = process.getStatus();
+        DirectoryRouter.Route route = process.getRoute();
+        this.processor = route == null ? null : route.getProcessorName();
+        this.directory = route == null ? null : route.getDirectory().toString();
+        this.fileSize = process.getFileSize() < 0 ? null : process.getFileSize();
+        this.stagingStrategy = process.getStagingStrategy();
+        List<String> outputs = new ArrayList<>();
+        synchronized (process.getOutputs()) {
+            for (Path output : process.getOutputs()) {
+                outputs.add(output.toString());
+            }
+        }
+        this.outputs = outputs.isEmpty() ? null : outputs;
+        this.logMessages = includeLog ? process.getLogMessages() : null;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public FileProcess.FileProcessStatus getStatus() {
+        return status;
+    }
+
+    public String getProcessor() {
+        return processor;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public Long getFileSize() {
+        return fileSize;
+    }
+
+    public FileStager.StagingStrategy getStagingStrategy() {
+        return stagingStrategy;
+    }
+
+    public List<String> getOutputs() {
+        return outputs;
+    }
+
+    public List<String> getLogMessages() {
+        return logMessages;
+    }
+}
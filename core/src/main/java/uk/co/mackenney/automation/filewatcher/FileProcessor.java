@@ -1,10 +1,16 @@
 package uk.co.mackenney.automation.filewatcher;
 
-import java.nio.file.Path;
-
 /**
  * Created by developer on 07/01/17.
  */
 public interface FileProcessor {
     public void processFile(FileProcess fileProcess);
+
+    /**
+     * Identifies the settings which decide what {@link #processFile} produces.  Results recorded in
+     * the {@link ProcessedContentCache} are only reused while this is unchanged.
+     */
+    public default String getConfigurationFingerprint() {
+        return getClass().getName();
+    }
 }
@@ -0,0 +1,16 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import java.util.Collection;
+
+/**
+ * Decides which PENDING files are no longer being written to and can move to READY_TO_PROCESS.
+ * The implementation in use is chosen by name through {@link FileWatcherConfiguration}.
+ */
+public interface FileReadinessDetector {
+    /**
+     * Called once per sweep with every pending file, so that implementations can batch their checks.
+     *
+     * @return the subset of the given files which are ready to process
+     */
+    public Collection<FileProcess> findReadyFiles(Collection<FileProcess> pendingFiles);
+}
@@ -0,0 +1,196 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import uk.co.mackenney.automation.util.HostUtil;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Places the input file of a {@link FileProcess} at its temporary path, trying each of the
+ * configured staging strategies in turn.  Only COPY can cross filesystems, so the others are
+ * skipped when the input and temporary directories are on different devices.
+ */
+@Component
+public class FileStager {
+    private static Logger log = LoggerFactory.getLogger(FileStager.class);
+
+    /**
+     * REFLINK: Copy-on-write clone (FICLONE) through {@code cp --reflink=always}, for btrfs and xfs.
+     * HARDLINK: Second link to the input inode.  A processor which rewrites the temporary file in
+     *           place also rewrites the input.
+         * MOVE: Atomic rename of the input.  The input is moved back if processing fails, or at the next
+     *       startup if the process stopped while it was staged, with any changes made to it.
+     * COPY: Streamed copy with FileChannel.transferTo.  Always possible.
+     */
+    public enum StagingStrategy {REFLINK, HARDLINK, MOVE, COPY}
+
+    /**
+     * Suffix of the marker written beside a moved input, holding the path it was moved from.
+     */
+    private static final String SOURCE_MARKER_SUFFIX = ".source";
+
+    @Autowired
+    private FileWatcherConfiguration config;
+
+    @Autowired
+    private HostUtil hostUtil;
+
+    @Autowired
+    private PipelineMetrics metrics;
+
+    private Object deviceOf(Path path) {
+        try {
+            return Files.getAttribute(path, "unix:dev");
+        }
+        catch (UnsupportedOperationException | IOException e) {
+            return null;
+        }
+    }
+
+    private boolean isSameDevice(Path source, Path target) {
+        Object sourceDevice = deviceOf(source);
+        return sourceDevice != null && sourceDevice.equals(deviceOf(target.getParent()));
+    }
+
+    private void reflink(Path source, Path target) throws IOException {
+        HostUtil.HostCallResult result = hostUtil.runHostCommand(new String[] {"cp", "--reflink=always", source.toString(), target.toString()});
+        if (result.getExitCode() != 0) throw new IOException(result.getStderr());
+    }
+
+    private void copy(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    private void stage(StagingStrategy strategy, Path source, Path target) throws IOException {
+        switch (strategy) {
+            case REFLINK:
+                reflink(source, target);
+                break;
+            case HARDLINK:
+                Files.createLink(target, source);
+                break;
+            case MOVE:
+                Path marker = sourceMarker(target);
+                Files.write(marker, source.toString().getBytes(StandardCharsets.UTF_8));
+                try {
+                    Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                }
+                catch (IOException ioe) {
+                    Files.deleteIfExists(marker);
+                    throw ioe;
+                }
+                break;
+            default:
+                copy(source, target);
+                break;
+        }
+    }
+
+    private static Path sourceMarker(Path tempFile) {
+        return tempFile.resolveSibling(tempFile.getFileName() + SOURCE_MARKER_SUFFIX);
+    }
+
+    private void recordStaging(StagingStrategy strategy, Path tempFile, long start) throws IOException {
+        metrics.recordSince("filewatcher.staging." + strategy.name().toLowerCase(), start);
+        metrics.addBytesIn(Files.size(tempFile));
+    }
+
+    /**
+     * Stages the input file at the given temporary path and records the strategy used on the process.
+     */
+    public void stage(FileProcess process, Path tempFile) throws IOException {
+        log.trace("--> stage(" + process + "," + tempFile + ")");
+        Path source = process.getPath();
+        long start = System.nanoTime();
+        boolean sameDevice = isSameDevice(source, tempFile);
+        for (StagingStrategy strategy : config.getStagingStrategies()) {
+            if (strategy == StagingStrategy.COPY || sameDevice) {
+                try {
+                    stage(strategy, source, tempFile);
+                    process.setTempFilePath(tempFile);
+                    process.setStagingStrategy(strategy);
+                    recordStaging(strategy, tempFile, start);
+                    log.trace("<-- stage() used " + strategy);
+                    return;
+                }
+                catch (IOException ioe) {
+                    log.debug("--- stage(): " + strategy + " failed for " + source + ": " + ioe);
+                    Files.deleteIfExists(tempFile);
+                }
+            }
+        }
+        // Nothing configured could cross devices
+        copy(source, tempFile);
+        process.setTempFilePath(tempFile);
+        process.setStagingStrategy(StagingStrategy.COPY);
+        recordStaging(StagingStrategy.COPY, tempFile, start);
+        log.trace("<-- stage() used " + StagingStrategy.COPY);
+    }
+
+    /**
+     * Removes the temporary file once processing has finished.  A moved input is put back when
+     * processing did not succeed, so that it can be reported and retried.
+     */
+    public void release(FileProcess process, boolean succeeded) throws IOException {
+        Path tempFile = process.getTempFilePath();
+        if (tempFile == null) return;
+        if (process.getStagingStrategy() == StagingStrategy.MOVE && !succeeded) {
+            Files.move(tempFile, process.getPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        else {
+            Files.deleteIfExists(tempFile);
+        }
+        if (process.getStagingStrategy() == StagingStrategy.MOVE) Files.deleteIfExists(sourceMarker(tempFile));
+    }
+
+    /**
+     * Moves inputs left in the temporary directory by MOVE staging back to where they came from,
+     * so that clearing the directory after a crash does not lose the only copy.  Their journal
+     * entries still match, so they carry on from where they stopped.
+     *
+     * @return the number of inputs restored
+     */
+    public int restoreMovedInputs(Path temporaryDirectory) throws IOException {
+        int restored = 0;
+        try (DirectoryStream<Path> markers = Files.newDirectoryStream(temporaryDirectory, "*" + SOURCE_MARKER_SUFFIX)) {
+            for (Path marker : markers) {
+                String markerName = marker.getFileName().toString();
+                Path tempFile = marker.resolveSibling(markerName.substring(0, markerName.length() - SOURCE_MARKER_SUFFIX.length()));
+                Path source = Paths.get(new String(Files.readAllBytes(marker), StandardCharsets.UTF_8));
+                if (!Files.exists(tempFile)) continue;
+                if (Files.exists(source)) {
+                    log.warn("Not restoring staged file " + tempFile + ", " + source + " exists again");
+                    continue;
+                }
+                try {
+                    Files.createDirectories(source.getParent());
+                    Files.move(tempFile, source, StandardCopyOption.ATOMIC_MOVE);
+                    log.info("Restored staged file " + tempFile + " to " + source);
+                    restored++;
+                }
+                catch (IOException ioe) {
+                    log.error("Unable to restore staged file " + tempFile + " to " + source, ioe);
+                }
+            }
+        }
+        return restored;
+    }
+}
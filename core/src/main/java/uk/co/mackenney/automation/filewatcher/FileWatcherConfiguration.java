@@ -30,12 +30,166 @@ public class FileWatcherConfiguration {
         return tempDirectory;
     }
 
+    private String readinessDetector = "procFdReadinessDetector";
+    private FileReadinessDetector readinessDetectorBean;
+    public void setReadinessDetector(String readinessDetector) {
+        this.readinessDetector = readinessDetector;
+    }
+    public String getReadinessDetector() {
+        return readinessDetector;
+    }
+
+    private String watcherBackend = "jdkWatcherBackend";
+    private WatcherBackend watcherBackendBean;
+    public void setWatcherBackend(String watcherBackend) {
+        this.watcherBackend = watcherBackend;
+    }
+    public String getWatcherBackend() {
+        return watcherBackend;
+    }
+
+    private boolean reconciliationEnabled = false;
+    public void setReconciliationEnabled(boolean reconciliationEnabled) {
+        this.reconciliationEnabled = reconciliationEnabled;
+    }
+    /**
+     * Whether the watched directories are periodically compared against their last snapshot, to
+     * pick up changes the watcher backend missed.  The period is set by fileWatcher.reconciliationInterval.
+     */
+    public boolean isReconciliationEnabled() {
+        return reconciliationEnabled;
+    }
+
+    private long eventCoalescingWindow = 250;
+    public void setEventCoalescingWindow(long eventCoalescingWindow) {
+        this.eventCoalescingWindow = eventCoalescingWindow;
+    }
+    /**
+     * Milliseconds over which watch events are batched and collapsed into one change per path.
+     */
+    public long getEventCoalescingWindow() {
+        return eventCoalescingWindow;
+    }
+
+    private int scanParallelism;
+    public void setScanParallelism(int scanParallelism) {
+        this.scanParallelism = scanParallelism;
+    }
+    /**
+     * Threads used to walk the watched directories, by default twice the number of processors as
+     * the walk mostly waits on the filesystem.
+     */
+    public int getScanParallelism() {
+        return scanParallelism > 0 ? scanParallelism : 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    private int maxInFlight = 1000;
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+    /**
+     * Maximum number of files admitted to the processor scheduler (QUEUED or PROCESSING) at once.
+     * Pending files are not checked for readiness while there is no room for them.
+     */
+    public int getMaxInFlight() {
+        return Math.max(1, maxInFlight);
+    }
+
+    private int maxTrackedFiles = 100000;
+    public void setMaxTrackedFiles(int maxTrackedFiles) {
+        this.maxTrackedFiles = maxTrackedFiles;
+    }
+    /**
+     * Maximum number of files tracked at once, zero for no limit.  Further files are left in place
+     * and their directories are scanned again once tracked files have been processed.
+     */
+    public int getMaxTrackedFiles() {
+        return maxTrackedFiles;
+    }
+
+    private int eventHistorySize = 10000;
+    public void setEventHistorySize(int eventHistorySize) {
+        this.eventHistorySize = eventHistorySize;
+    }
+    /**
+     * Number of recent transitions kept for event stream subscribers resuming after a reconnect.
+     */
+    public int getEventHistorySize() {
+        return eventHistorySize;
+    }
+
+    private int eventBufferSize = 1000;
+    public void setEventBufferSize(int eventBufferSize) {
+        this.eventBufferSize = eventBufferSize;
+    }
+    /**
+     * Number of transitions queued for each event stream subscriber before the oldest are dropped.
+     */
+    public int getEventBufferSize() {
+        return Math.max(1, eventBufferSize);
+    }
+
+    private long eventStreamTimeout = 1800000;
+    public void setEventStreamTimeout(long eventStreamTimeout) {
+        this.eventStreamTimeout = eventStreamTimeout;
+    }
+    /**
+     * Milliseconds after which an event stream is closed; clients reconnect with Last-Event-ID.
+     */
+    public long getEventStreamTimeout() {
+        return eventStreamTimeout;
+    }
+
+    private String journalFile;
+    public void setJournalFile(String journalFile) {
+        this.journalFile = journalFile;
+    }
+    public String getJournalFile() {
+        return journalFile;
+    }
+
+    private int dedupCacheSize = 10000;
+    public void setDedupCacheSize(int dedupCacheSize) {
+        this.dedupCacheSize = dedupCacheSize;
+    }
+    public int getDedupCacheSize() {
+        return dedupCacheSize;
+    }
+
+    private String dedupHashAlgorithm = "SHA-256";
+    public void setDedupHashAlgorithm(String dedupHashAlgorithm) {
+        this.dedupHashAlgorithm = dedupHashAlgorithm;
+    }
+    public String getDedupHashAlgorithm() {
+        return dedupHashAlgorithm;
+    }
+
+    /**
+     * Ways to stage an input, tried in order.  The audio manager rewrites tags in the staged file, which
+     * HARDLINK would also write into the input, and MOVE into the input once it is put back after
+     * a failure, so a retry would see different content.  Those two are only safe for processors
+     * which never write to the staged file; REFLINK and COPY always are.
+     */
+    private List<FileStager.StagingStrategy> stagingStrategies = new ArrayList<>(Arrays.asList(FileStager.StagingStrategy.COPY));
+    public void setStagingStrategies(List<FileStager.StagingStrategy> stagingStrategies) {
+        this.stagingStrategies = stagingStrategies;
+    }
+    public List<FileStager.StagingStrategy> getStagingStrategies() {
+        return stagingStrategies;
+    }
+
     private List<ProcessorClassMapping> processorClassMappings = new ArrayList<>();
-    private Map<Path,FileProcessor> processorBeans = new HashMap<>();
+    private DirectoryRouter router;
 
     public static class ProcessorClassMapping {
         private String directory;
         private String processor;
+        private List<String> includes = new ArrayList<>();
+        private String name;
+        private int priority = 0;
+        private int weight = 1;
+        private int maxConcurrency = 0;
+        private ProcessScheduler.Ordering ordering = ProcessScheduler.Ordering.FIFO;
         public void setDirectory(String directory) {
             this.directory = directory;
         }
@@ -48,6 +202,55 @@ public class FileWatcherConfiguration {
         public String getProcessor() {
             return processor;
         }
+        /**
+         * Glob patterns matched against the file name, e.g. '*.m4a'.  When empty, every file is included.
+         */
+        public List<String> getIncludes() {
+            return includes;
+        }
+        public void setName(String name) {
+            this.name = name;
+        }
+        /**
+         * Name of the scheduling queue, by default the processor name.  Mappings with the same name
+         * share a queue, and the settings of the first one apply.
+         */
+        public String getName() {
+            return name != null ? name : processor;
+        }
+        public void setPriority(int priority) {
+            this.priority = priority;
+        }
+        /**
+         * Queues with a higher priority are always served first.
+         */
+        public int getPriority() {
+            return priority;
+        }
+        public void setWeight(int weight) {
+            this.weight = weight;
+        }
+        /**
+         * Share of the processor threads given to the queue relative to others of the same priority.
+         */
+        public int getWeight() {
+            return Math.max(1, weight);
+        }
+        public void setMaxConcurrency(int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+        }
+        /**
+         * Maximum number of files from the queue processed at once, zero for no limit.
+         */
+        public int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+        public void setOrdering(ProcessScheduler.Ordering ordering) {
+            this.ordering = ordering;
+        }
+        public ProcessScheduler.Ordering getOrdering() {
+            return ordering;
+        }
     }
 
     public List<ProcessorClassMapping> getProcessorClassMappings() {
@@ -56,17 +259,39 @@ public class FileWatcherConfiguration {
 
     @PostConstruct
     public void init() {
+        DirectoryRouter router = new DirectoryRouter();
         for (ProcessorClassMapping mapping : processorClassMappings) {
-            processorBeans.put(Paths.get(mapping.getDirectory()),(FileProcessor)applicationContext.getBean(mapping.getProcessor()));
+            router.add(Paths.get(mapping.getDirectory()), mapping.getProcessor(), (FileProcessor)applicationContext.getBean(mapping.getProcessor()), mapping.getIncludes());
         }
+        this.router = router;
+        readinessDetectorBean = (FileReadinessDetector)applicationContext.getBean(readinessDetector);
+        watcherBackendBean = (WatcherBackend)applicationContext.getBean(watcherBackend);
+    }
+
+    public WatcherBackend getFileWatcherBackend() {
+        return watcherBackendBean;
+    }
+
+    public FileReadinessDetector getFileReadinessDetector() {
+        return readinessDetectorBean;
     }
 
     public Collection<Path> getInputDirs() {
-        return processorBeans.keySet();
+        return router.getDirectories();
+    }
+
+    /**
+     * Returns the mapping which handles the file, or null if no watched directory accepts it.
+     */
+    public DirectoryRouter.Route route(Path file) {
+        return router.route(file);
     }
 
-    public FileProcessor getFileProcessorForDirectory(Path directory) {
-        return processorBeans.get(directory);
+    /**
+     * Returns the deepest watched directory containing the file.
+     */
+    public Path locateInputDirectory(Path file) {
+        return router.locateDirectory(file);
     }
 
 }
@@ -2,9 +2,17 @@ package uk.co.mackenney.automation.filewatcher;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.annotation.PostConstruct;
 import java.text.SimpleDateFormat;
@@ -22,6 +30,15 @@ public class FileWatcherController {
     @Autowired
     private FileWatcherService fileWatcherService;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private FileProcessEventPublisher eventPublisher;
+
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
     @PostConstruct
     public void init() throws RuntimeException {
         try {
@@ -32,9 +49,66 @@ public class FileWatcherController {
         }
     }
 
+    /**
+     * One page of tracked files, optionally filtered by state, directory or processor mapping name,
+     * with the count of files in each state.  Pages are ordered by the sequence id given to each file
+     * when it was first tracked; pass the returned nextCursor as "after" for the next page.
+     */
     @RequestMapping("/filewatcher/status")
-    public Collection<FileProcess> getStatus() {
-        return fileWatcherService.getFileProcessList();
+    public FileProcessPage getStatus(@RequestParam(required=false) FileProcess.FileProcessStatus state,
+                                     @RequestParam(required=false) String directory,
+                                     @RequestParam(required=false) String mapping,
+                                     @RequestParam(defaultValue="0") long after,
+                                     @RequestParam(defaultValue="100") int limit,
+                                     @RequestParam(defaultValue="false") boolean log) {
+        FileProcessQuery query = new FileProcessQuery(state, directory, mapping, config);
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        List<FileProcessSnapshot> items = new ArrayList<>(Math.min(pageSize, 1024));
+        Iterator<FileProcess> matches = query.iterator(fileWatcherService.getIndex(), after);
+        while (items.size() < pageSize && matches.hasNext()) {
+            items.add(new FileProcessSnapshot(matches.next(), log));
+        }
+        Long nextCursor = matches.hasNext() ? items.get(items.size() - 1).getId() : null;
+        return new FileProcessPage(fileWatcherService.getIndex().getCounts(), items, nextCursor);
+    }
+
+    /**
+     * Every matching file as newline-delimited JSON, written as the index is walked so that memory
+     * use does not depend on the number of files.
+     */
+    @RequestMapping(value="/filewatcher/status", params="format=ndjson")
+    public ResponseEntity<StreamingResponseBody> streamStatus(@RequestParam(required=false) FileProcess.FileProcessStatus state,
+                                                              @RequestParam(required=false) String directory,
+                                                              @RequestParam(required=false) String mapping,
+                                                              @RequestParam(defaultValue="0") long after,
+                                                              @RequestParam(defaultValue="false") boolean log) {
+        final FileProcessQuery query = new FileProcessQuery(state, directory, mapping, config);
+        final ObjectWriter writer = objectMapper.writerFor(FileProcessSnapshot.class);
+        StreamingResponseBody body = outputStream -> {
+            Iterator<FileProcess> matches = query.iterator(fileWatcherService.getIndex(), after);
+            while (matches.hasNext()) {
+                // The writer would close the stream after each value, so write to a buffer first
+                outputStream.write(writer.writeValueAsBytes(new FileProcessSnapshot(matches.next(), log)));
+                outputStream.write('\n');
+            }
+        };
+        return ResponseEntity.ok().contentType(NDJSON).body(body);
+    }
+
+    /**
+     * Server-sent events for each status transition.  A client resuming after a disconnect sends the
+     * last event id it received, as the Last-Event-ID header or the "after" parameter.
+     */
+    @RequestMapping(value="/filewatcher/events", produces="text/event-stream")
+    public SseEmitter streamEvents(@RequestHeader(value="Last-Event-ID", required=false) Long lastEventId,
+                                   @RequestParam(required=false) Long after) {
+        long resumeAfter = after != null ? after : lastEventId != null ? lastEventId : -1;
+        return eventPublisher.subscribe(resumeAfter);
+    }
+
+    @RequestMapping("/filewatcher/status/counts")
+    public Map<FileProcess.FileProcessStatus, Long> getStatusCounts() {
+        return fileWatcherService.getIndex().getCounts();
     }
 
     private Map<String,String> convertPathMapToStringMap(Map<Path,Long> input) {
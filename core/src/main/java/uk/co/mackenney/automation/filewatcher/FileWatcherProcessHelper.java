@@ -5,9 +5,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
+import uk.co.mackenney.automation.util.CpuPermits;
 import uk.co.mackenney.automation.util.FileUtil;
 
 import javax.annotation.PostConstruct;
@@ -30,6 +30,18 @@ public class FileWatcherProcessHelper {
     @Autowired
     private FileUtil fileUtil;
 
+    @Autowired
+    private FileStager fileStager;
+
+    @Autowired
+    private ProcessedContentCache contentCache;
+
+    @Autowired
+    private PipelineMetrics metrics;
+
+    @Autowired
+    private CpuPermits cpuPermits;
+
     private Path temporaryFolder;
 
     private long id = 1;
@@ -39,54 +51,78 @@ public class FileWatcherProcessHelper {
         return "" + id;
     }
 
-    private FileProcessor locateProcessorForFile(Path inputFile) {
-        for (Path directory : config.getInputDirs()) {
-            if (inputFile.startsWith(directory)) {
-                return config.getFileProcessorForDirectory(directory);
-            }
-        }
-        return null;
+    private FileProcessor locateProcessorForFile(FileProcess inputFile) {
+        if (inputFile.getRoute() == null) inputFile.setRoute(config.route(inputFile.getPath()));
+        return inputFile.getRoute() == null ? null : inputFile.getRoute().getProcessor();
     }
 
     private void setupTemporaryFile(FileProcess process) throws IOException {
         Path tempFile = temporaryFolder.resolve(generateTempFileName() + fileUtil.getExtension(process.getPath()));
-        Files.copy(process.getPath(), tempFile);
-        process.setTempFilePath(tempFile);
+        fileStager.stage(process, tempFile);
     }
 
 
 
+    private void recordBytesOut(FileProcess process) {
+        synchronized (process.getOutputs()) {
+            for (Path output : process.getOutputs()) {
+                try {
+                    metrics.addBytesOut(Files.size(output));
+                }
+                catch (IOException ioe) {
+                    log.debug("--- recordBytesOut(): Unable to read size of " + output + ": " + ioe);
+                }
+            }
+        }
+    }
+
     @PostConstruct
     public void init() throws IOException {
-        // Make sure temporary directory exists and is empty
+        // Make sure temporary directory exists and is empty, once any inputs it holds are put back
         temporaryFolder = config.getTempDirectory();
         Files.createDirectories(temporaryFolder);
+        fileStager.restoreMovedInputs(temporaryFolder);
         FileUtils.cleanDirectory(temporaryFolder.toFile());
     }
 
-    @Async("processorExecutor")
+    /**
+     * Runs the processor for the file on the calling thread; {@link ProcessScheduler} decides when
+     * and on which processor thread.
+     */
     public void executeProcess(FileProcess inputFile) {
         log.trace("--> executeProcess(" + inputFile + ")");
+        Throwable error = null;
         try {
-            FileProcessor processor = locateProcessorForFile(inputFile.getPath());
+            FileProcessor processor = locateProcessorForFile(inputFile);
             if (processor == null) throw new RuntimeException("Unable to locate processor for file " + inputFile);
 
             setupTemporaryFile(inputFile);
 
-            // Invoke the processor with the temporary file
-            processor.processFile(inputFile);
-
-            inputFile.setProcessed();
+            // Hash before the processor runs, as it may rewrite the temporary file
+            String cacheKey = contentCache.isEnabled() ? cpuPermits.call(() -> contentCache.key(inputFile, processor)) : null;
+            if (cacheKey != null && contentCache.isAlreadyProduced(cacheKey, inputFile)) {
+                inputFile.log("Identical content already processed, outputs exist: " + inputFile.getOutputs());
+            }
+            else {
+                // Invoke the processor with the temporary file
+                processor.processFile(inputFile);
+                if (cacheKey != null) contentCache.put(cacheKey, inputFile.getOutputs());
+                recordBytesOut(inputFile);
+            }
         }
         catch (Throwable t) {
-            inputFile.setError();
-            inputFile.log("ERROR: " + t.toString());
-            throw new RuntimeException(t);
+            error = t;
         }
-        finally {
-            // Remove the temporary file
-            try {Files.delete(inputFile.getTempFilePath());} catch (IOException ioe) {}
+
+        // Remove the temporary file before the cleanup or error stage picks up the new status
+        try {fileStager.release(inputFile, error == null);} catch (IOException ioe) {log.error("Unable to release temporary file for " + inputFile, ioe);}
+
+        if (error != null) {
+            inputFile.log("ERROR: " + error.toString());
+            inputFile.setError();
+            throw new RuntimeException(error);
         }
+        inputFile.setProcessed();
         log.trace("<-- executeProcess()");
     }
 
@@ -4,144 +4,283 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.helpers.MessageFormatter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
-import uk.co.mackenney.automation.util.HostUtil;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.file.FileSystems;
-import java.nio.file.FileVisitResult;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
-import static java.nio.file.StandardWatchEventKinds.*;
 
 /**
  * Component which monitors directories and yields events.
+ *
+ * Each {@link FileProcess} reports its status transitions back to this service, which pushes the
+ * file onto the queue for the next stage.  Only PENDING files are swept on a timer; the process,
+ * cleanup and error stages each block on their own queue and react as soon as a file arrives.
  */
 @Component
-public class FileWatcherService {
+public class FileWatcherService implements FileProcessListener, PublicMetrics {
     private static final String ERROR_FILE_EXTENSION = ".err";
 
-    private boolean running = false;
+    private volatile boolean running = false;
 
     @Autowired
     private FileWatcherConfiguration config;
 
     @Autowired
-    private FileWatcherProcessHelper processHelper;
+    private FileProcessJournal journal;
 
     @Autowired
-    private HostUtil hostUtil;
+    private ProcessScheduler scheduler;
+
+    @Autowired
+    private PipelineMetrics metrics;
+
+    @Autowired
+    private FileProcessEventPublisher eventPublisher;
 
     private static Logger log = LoggerFactory.getLogger(FileWatcherController.class);
 
-    private final WatchService watcher;
-    private final Map<WatchKey, Path> keys;
+    private WatcherBackend backend;
+    private final DirectorySnapshotCache snapshots = new DirectorySnapshotCache();
+
+    private final ConcurrentMap<Path, FileProcess> fileProcessList;
+    private final FileProcessIndex index = new FileProcessIndex();
+
+    private final Set<FileProcess> pendingFiles;
+    private final BlockingQueue<FileProcess> readyToProcessQueue;
+    private final BlockingQueue<FileProcess> processedQueue;
+    private final BlockingQueue<FileProcess> errorQueue;
+
+    private final Set<Path> deferredDirectories = ConcurrentHashMap.newKeySet();
 
-    private Set<FileProcess> fileProcessList;
+    private final List<Thread> stageThreads = new ArrayList<>();
+
+    private DirectoryScanner scanner;
 
 
     public Collection<FileProcess> getFileProcessList() {
-        return fileProcessList;
+        return fileProcessList.values();
     }
 
+    public FileProcessIndex getIndex() {
+        return index;
+    }
 
-    @SuppressWarnings("unchecked")
-    static <T> WatchEvent<T> cast(WatchEvent<?> event) {
-        return (WatchEvent<T>) event;
+    /**
+     * Stops tracking the process, if it is still the one tracked for its path.
+     */
+    private void untrack(FileProcess process) {
+        if (fileProcessList.remove(process.getPath(), process)) index.untrack(process);
     }
 
+
     /**
-     * Register the given directory with the WatchService
+     * Register the given directory with the watcher backend
      */
     private void register(Path dir) throws IOException {
         log.trace("--> register(" + dir + ")");
-        WatchKey key = dir.register(watcher, ENTRY_DELETE, ENTRY_CREATE, ENTRY_MODIFY);
-        keys.put(key, dir);
-        //enqueueTime.put(dir, System.currentTimeMillis());
-        log.debug("Registered keys: " + keys);
+        backend.register(dir);
+        snapshots.registered(dir);
         log.trace("<-- register()");
     }
 
     private void enqueueNewFile(Path sourceFile) {
         log.trace("--> enqueueNewFile(" + sourceFile + ")");
-        fileProcessList.add(new FileProcess(sourceFile));
+        if (fileProcessList.containsKey(sourceFile)) return;
+        int maxTrackedFiles = config.getMaxTrackedFiles();
+        if (maxTrackedFiles > 0 && fileProcessList.size() >= maxTrackedFiles) {
+            if (deferredDirectories.add(sourceFile.getParent())) {
+                log.info("Tracking " + maxTrackedFiles + " files already, deferring " + sourceFile.getParent());
+            }
+            return;
+        }
+        DirectoryRouter.Route route = config.route(sourceFile);
+        if (route == null) {
+            log.trace("<-- enqueueNewFile: no processor mapping includes " + sourceFile);
+            return;
+        }
+        FileProcess process = new FileProcess(sourceFile, this);
+        process.setRoute(route);
+        if (fileProcessList.putIfAbsent(sourceFile, process) == null) {
+            FileProcessJournal.Entry recovered = recoverFromJournal(sourceFile);
+            if (recovered != null && recovered.getStatus() == FileProcess.FileProcessStatus.ERROR) {
+                log.info("Skipping " + sourceFile + ", it failed before and has not changed since");
+                fileProcessList.remove(sourceFile, process);
+                return;
+            }
+            index.track(process);
+            process.publish();
+            if (recovered != null) resume(process, recovered);
+        }
         log.trace("<-- enqueueNewFile");
     }
 
-    private boolean isAvailable(Path file) {
-        log.trace("--> isAvailable( " + file + ")");
-        HostUtil.HostCallResult lsofResult = hostUtil.runHostCommand(new String[] {"lsof","-t", file.toString()});
-        return lsofResult.getStdout() == null || lsofResult.getStdout().length() == 0;
+    private FileProcessJournal.Entry recoverFromJournal(Path sourceFile) {
+        if (!journal.isEnabled()) return null;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(sourceFile, BasicFileAttributes.class);
+            return journal.recover(sourceFile, attrs.size(), attrs.lastModifiedTime().toMillis());
+        }
+        catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Moves a file straight to the stage it had reached before a restart.  Files which were already
+     * processed only need cleaning up, and files which had been found ready, or were being
+     * processed, skip the readiness check.  The file is already visible to the pending sweep, so
+     * nothing is done if the sweep has moved it on first.
+     */
+    private void resume(FileProcess process, FileProcessJournal.Entry recovered) {
+        FileProcess.FileProcessStatus next;
+        switch (recovered.getStatus()) {
+            case PROCESSED:
+                next = FileProcess.FileProcessStatus.PROCESSED;
+                break;
+            case READY_TO_PROCESS:
+            case QUEUED:
+            case PROCESSING:
+                next = FileProcess.FileProcessStatus.READY_TO_PROCESS;
+                break;
+            default:
+                return;
+        }
+        if (process.transition(FileProcess.FileProcessStatus.PENDING, next)) {
+            process.log("Resumed from journal status " + recovered.getStatus());
+        }
+    }
+
+    /**
+     * Routes a file to the queue of the stage that handles its new status.
+     */
+    @Override
+    public void statusChanged(FileProcess process) {
+        index.statusChanged(process);
+        journal.record(process);
+        metrics.statusChanged(process);
+        eventPublisher.publish(process);
+        switch (process.getStatus()) {
+            case PENDING:
+                pendingFiles.add(process);
+                break;
+            case READY_TO_PROCESS:
+                pendingFiles.remove(process);
+                readyToProcessQueue.add(process);
+                break;
+            case PROCESSED:
+                pendingFiles.remove(process);
+                processedQueue.add(process);
+                break;
+            case ERROR:
+                errorQueue.add(process);
+                break;
+            default:
+                break;
+        }
     }
 
     /**
      * Register the given directory, and all its sub-directories, with the
-     * WatchService.
+     * watcher backend.  The walk runs in the background on the scanner pool, and
+     * files are queued as they are found.
      */
-    private void registerAll(final Path start) throws IOException {
+    private void registerAll(final Path start) {
         log.trace("--> registerAll(" + start + ")");
-        // register directory and sub-directories
-        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                log.trace("--- registerAll: preVisitDirectory(" + dir + ")");
-                register(dir);
-                return FileVisitResult.CONTINUE;
-            }
+        scanner.scan(start);
+        log.trace("<-- registerAll()");
+    }
 
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                log.trace("--- registerAll: visitFile(" + file + ")");
-                enqueueNewFile(file);
-                return super.visitFile(file, attrs);
-            }
+    private void scanFile(Path file) {
+        log.trace("--- registerAll: visitFile(" + file + ")");
+        if (!file.toString().endsWith(ERROR_FILE_EXTENSION)) enqueueNewFile(file);
+    }
 
-        });
-        log.trace("<-- registerAll()");
+    public FileWatcherService() {
+        log.trace("--> <constructor>");
+        this.fileProcessList = new ConcurrentHashMap<>();
+        this.pendingFiles = ConcurrentHashMap.newKeySet();
+        this.readyToProcessQueue = new LinkedBlockingQueue<>();
+        this.processedQueue = new LinkedBlockingQueue<>();
+        this.errorQueue = new LinkedBlockingQueue<>();
+        log.trace("<-- <constructor>");
+    }
+
+    private interface StageHandler {
+        public void handle(FileProcess process) throws IOException, InterruptedException;
     }
 
     /**
-     * Creates a WatchService and registers the given directory
+     * Starts a thread which hands every file arriving on the queue to the handler.
      */
-    public FileWatcherService() throws IOException {
-        log.trace("--> <constructor>");
-        this.watcher = FileSystems.getDefault().newWatchService();
-        this.keys = new HashMap<WatchKey, Path>();
-        this.fileProcessList = Collections.synchronizedSet(new HashSet<>());
-        log.trace("<-- <constructor>");
+    private void startStage(final String name, final BlockingQueue<FileProcess> queue, final StageHandler handler) {
+        Thread thread = new Thread(() -> {
+            while (running) {
+                FileProcess process;
+                try {
+                    process = queue.take();
+                }
+                catch (InterruptedException ie) {
+                    return;
+                }
+                try {
+                    handler.handle(process);
+                }
+                catch (InterruptedException ie) {
+                    return;
+                }
+                catch (Throwable t) {
+                    log.error("Stage " + name + " failed for file " + process, t);
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        stageThreads.add(thread);
     }
 
     public void start() {
         log.trace("--> start()");
         running = true;
-        for(Path inputDir : config.getInputDirs()) {
-            log.info("Adding path to monitor: " + inputDir);
-            try {
-                registerAll(inputDir);
+        startStage("filewatcher-process", readyToProcessQueue, this::processFile);
+        startStage("filewatcher-cleanup", processedQueue, this::cleanupInputDirectory);
+        startStage("filewatcher-errors", errorQueue, this::reportError);
+        backend = config.getFileWatcherBackend();
+        scanner = new DirectoryScanner(config.getScanParallelism(), new DirectoryScanner.Visitor() {
+            @Override
+            public void visitDirectory(Path directory) throws IOException {
+                register(directory);
             }
-            catch (IOException e) {
-                log.error("Unable to register path " + inputDir + " due to error", e);
+            @Override
+            public void visitFile(Path file) {
+                scanFile(file);
             }
+        });
+        for(Path inputDir : config.getInputDirs()) {
+            log.info("Adding path to monitor: " + inputDir);
+            registerAll(inputDir);
         }
         log.trace("<-- start()");
     }
@@ -149,128 +288,195 @@ public class FileWatcherService {
     public void stop() {
         log.trace("--> stop()");
         running = false;
+        for (Thread thread : stageThreads) {
+            thread.interrupt();
+        }
+        stageThreads.clear();
+        if (scanner != null) scanner.shutdown();
+        try {
+            if (backend != null) backend.close();
+        }
+        catch (IOException ioe) {
+            log.warn("Unable to close watcher backend", ioe);
+        }
         log.trace("<-- stop()");
     }
 
     /**
-     * Process all events for keys queued to the watcher
+     * Stops tracking a file which was deleted before it reached processing.  Files already being
+     * processed are left alone, as staging by MOVE and the cleanup stage both delete the input.
+     */
+    private void dropFile(Path file) {
+        FileProcess process = fileProcessList.get(file);
+        if (process != null && (process.isPending() || process.isReadyToProcess() || (process.isQueued() && scheduler.cancel(process)))) {
+            log.debug("--- dropFile(): " + file + " was deleted, no longer tracking it");
+            untrack(process);
+            pendingFiles.remove(process);
+            journal.remove(file);
+        }
+    }
+
+    private void applyChanges(Map<Path, Boolean> changes) {
+        for (Map.Entry<Path, Boolean> change : changes.entrySet()) {
+            Path child = change.getKey();
+            if (change.getValue()) {
+                dropFile(child);
+            }
+            else if (Files.isRegularFile(child, NOFOLLOW_LINKS)) {
+                if (!child.toString().endsWith(ERROR_FILE_EXTENSION) && !fileProcessList.containsKey(child)) {
+                    log.trace("--- applyChanges(): New file detected " + child);
+                    enqueueNewFile(child);
+                }
+            }
+            else if (Files.isDirectory(child, NOFOLLOW_LINKS)) {
+                // if directory is created, and watching recursively, then
+                // register it and its sub-directories
+                log.trace("--- applyChanges(): New directory detected " + child);
+                registerAll(child);
+            }
+        }
+    }
+
+    /**
+     * Process all changes reported by the watcher backend
      */
     @Async
     public void processEvents() {
         log.trace("--> processEvents()");
         while(running) {
 
-            // wait for key to be signalled
-            WatchKey key;
+            // Wait for changes, collapsed into the net change per path over the coalescing window
+            WatchBatch batch;
             try {
-                key = watcher.take();
+                batch = backend.take(config.getEventCoalescingWindow());
             }
             catch (InterruptedException x) {
                 return;
             }
-
-            log.trace("--- processEvents(): WatchKey arrived: " + key);
-
-            Path dir = keys.get(key);
-            if (dir == null) {
-                log.error("WatchKey not recognized: " + dir);
-                continue;
+            catch (ClosedWatchServiceException x) {
+                return;
             }
-
-            for (WatchEvent<?> event : key.pollEvents()) {
-                // Context for directory entry event is the file name of entry
-                WatchEvent<Path> ev = cast(event);
-                Path child = dir.resolve(ev.context());
-                log.trace("--- processEvents(): Processing " + child + ", event type " + ev.kind());
-
-                // if directory is created, and watching recursively, then
-                // register it and its sub-directories
-                if (ev.kind() == ENTRY_CREATE || ev.kind() == ENTRY_MODIFY) {
-                    if (Files.isRegularFile(child, NOFOLLOW_LINKS) && !child.toString().endsWith(ERROR_FILE_EXTENSION)) {
-                        log.trace("--- processEvents(): New file detected " + child);
-                        enqueueNewFile(child);
-                    }
-                    else if (Files.isDirectory(child, NOFOLLOW_LINKS)) {
-                        log.trace("--- processEvents(): New directory detected " + child);
-                        try {
-                            registerAll(child);
-                        }
-                        catch (IOException ioe) {}
-                    }
-                }
+            log.trace("--- processEvents(): Coalesced " + batch.getEventCount() + " events into " + batch.getChanges().size() + " changes");
+            for (Path dir : batch.getRemovedDirectories()) {
+                snapshots.removed(dir);
+            }
+            applyChanges(batch.getChanges());
+
+            // Events were lost for these directories, so compare them against their last snapshot
+            // rather than walking the whole tree again
+            for (Path dir : batch.getOverflowedDirectories()) {
+                log.warn("Watch events lost for " + dir + ", rescanning it");
+                WatchBatch rescan = new WatchBatch();
+                snapshots.diff(dir, true, rescan);
+                applyChanges(rescan.getChanges());
             }
-            log.trace("--- processEvents(): Finished processing key: " + key);
         }
         log.trace("<-- processEvents()");
     }
 
 
-    @Scheduled(fixedDelay=5000)
+    /**
+     * Compares every watched directory with its last snapshot and applies the differences.  Only
+     * directories whose modification time has moved on are listed.
+     */
+    @Scheduled(fixedDelayString="${fileWatcher.reconciliationInterval:300000}")
+    public void reconcileDirectories() {
+        if (!running || !config.isReconciliationEnabled()) return;
+        log.trace("--> reconcileDirectories()");
+        WatchBatch batch = new WatchBatch();
+        int directoryCount = 0;
+        for (Path dir : snapshots.getDirectories()) {
+            snapshots.diff(dir, false, batch);
+            directoryCount++;
+        }
+        if (!batch.getChanges().isEmpty()) {
+            log.info("Reconciliation of " + directoryCount + " directories found " + batch.getChanges().size() + " missed changes");
+        }
+        applyChanges(batch.getChanges());
+        log.trace("<-- reconcileDirectories()");
+    }
+
+    @Scheduled(fixedDelayString="${fileWatcher.pendingCheckInterval:5000}")
     public void monitorPendingFiles() throws IOException {
         log.trace("--> monitorPendingFiles()");
-        List<FileProcess> processListCopy = new ArrayList<>();
-        processListCopy.addAll(fileProcessList);
+        rescanDeferredDirectories();
+        scheduler.dispatch();
+
+        // Only promote as many files as the scheduler can admit; the rest stay pending
+        int capacity = scheduler.getAvailableCapacity() - readyToProcessQueue.size();
+        if (capacity <= 0) {
+            log.debug("--- monitorPendingFiles(): Scheduler is full, " + pendingFiles.size() + " pending files not checked");
+            log.trace("<-- monitorPendingFiles()");
+            return;
+        }
+        // Only the files which could be admitted are checked, the longest pending first
+        Comparator<FileProcess> newestFirst = Comparator.comparingLong((FileProcess process) -> process.getStatusNanos(FileProcess.FileProcessStatus.PENDING)).reversed();
+        PriorityQueue<FileProcess> candidates = new PriorityQueue<>(capacity + 1, newestFirst);
         int pendingFilesCount = 0;
+        for (FileProcess process : pendingFiles) {
+            if (!process.isPending()) continue;
+            pendingFilesCount++;
+            candidates.add(process);
+            if (candidates.size() > capacity) candidates.poll();
+        }
         int pendingFilesReadyCount = 0;
-        for (Iterator<FileProcess> it = processListCopy.iterator(); it.hasNext();) {
-            FileProcess process = it.next();
-            if (process.isPending()) {
-                if (isAvailable(process.getPath())) {
-                    process.setReadyToProcess();
-                }
-            }
+        for (FileProcess process : config.getFileReadinessDetector().findReadyFiles(candidates)) {
+            if (pendingFilesReadyCount >= capacity) break;
+            if (process.transition(FileProcess.FileProcessStatus.PENDING, FileProcess.FileProcessStatus.READY_TO_PROCESS)) pendingFilesReadyCount++;
         }
         log.debug(MessageFormatter.format("--- monitorPendingFiles(): {} pending files found. {} pending files moved to ready to process state.",pendingFilesCount, pendingFilesReadyCount).getMessage());
         log.trace("<-- monitorPendingFiles()");
     }
 
-    @Scheduled(fixedDelay=5000)
-    public void removeInvalidWatchKeys() {
-        log.trace("--> removeInvalidWatchKeys()");
-        for (Iterator<Map.Entry<WatchKey,Path>> it = keys.entrySet().iterator(); it.hasNext(); ) {
-            Map.Entry<WatchKey,Path> key = it.next();
-            if (!key.getKey().reset()) {
-              log.trace("--- removeInvalidWatchKeys(): Removed WatchKey: " + key.getKey().toString() + " for path " + key.getValue().toString());
-              it.remove();
+    /**
+     * Lists directories whose files were turned away at the tracking limit, once there is room again.
+     */
+    private void rescanDeferredDirectories() {
+        int maxTrackedFiles = config.getMaxTrackedFiles();
+        for (Path dir : deferredDirectories) {
+            if (maxTrackedFiles > 0 && fileProcessList.size() >= maxTrackedFiles) return;
+            deferredDirectories.remove(dir);
+            log.debug("--- rescanDeferredDirectories(): Rescanning " + dir);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry : stream) {
+                    if (Files.isRegularFile(entry, NOFOLLOW_LINKS)) scanFile(entry);
+                }
+            }
+            catch (IOException ioe) {
+                log.debug("--- rescanDeferredDirectories(): Unable to list " + dir + ": " + ioe);
             }
         }
-        log.trace("<-- removeInvalidWatchKeys()");
     }
 
-
-    @Scheduled(fixedDelay=5000)
-    public void processFiles() {
-        log.trace("--> processFiles()");
-        int filesToProcessCount = 0;
-        List<FileProcess> processListCopy = new ArrayList<>();
-        processListCopy.addAll(fileProcessList);
-        for (Iterator<FileProcess> it = processListCopy.iterator(); it.hasNext();) {
-            FileProcess process = it.next();
-            log.trace("--- processFiles(): Checking file " + process);
-            if (process.isReadyToProcess()) {
-                log.trace("--- processFiles(): File " + process + " is ready to process");
-                filesToProcessCount++;
-                process.setProcessing();
-                processHelper.executeProcess(process);
-            }
+    private void processFile(FileProcess process) throws InterruptedException {
+        log.trace("--> processFile(" + process + ")");
+        // Skip files which were dropped after they were queued
+        if (process.isReadyToProcess() && fileProcessList.get(process.getPath()) == process) {
+            scheduler.submit(process);
         }
-        log.debug(MessageFormatter.format("--- processFiles(): Found {} files ready to process.",filesToProcessCount).getMessage());
-        log.trace("<-- processFiles()");
+        log.trace("<-- processFile()");
     }
 
-    private Path locateParentDirectoryForFile(Path inputFile) {
-        for (Path directory : config.getInputDirs()) {
-            if (inputFile.startsWith(directory)) {
-                return directory;
-            }
-        }
-        return null;
+    /**
+     * Depth of the queue in front of each stage.  Files admitted to the scheduler are published by
+     * {@link ProcessScheduler}.
+     */
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("filewatcher.queue.pending", pendingFiles.size()));
+        metrics.add(new Metric<>("filewatcher.queue.readyToProcess", readyToProcessQueue.size()));
+        metrics.add(new Metric<>("filewatcher.queue.processed", processedQueue.size()));
+        metrics.add(new Metric<>("filewatcher.queue.error", errorQueue.size()));
+        metrics.add(new Metric<>("filewatcher.tracked", fileProcessList.size()));
+        metrics.add(new Metric<>("filewatcher.deferredDirectories", deferredDirectories.size()));
+        return metrics;
     }
 
     public void removeFileAndParentDirs(Path file) throws IOException {
         if (Files.exists(file)) Files.delete(file);
         Path parentDir = file.getParent();
-        Path inputDir = locateParentDirectoryForFile(file);
+        Path inputDir = config.locateInputDirectory(file);
         if (inputDir != null) {
           while (!parentDir.equals(inputDir)) {
               if (parentDir.toFile().list().length == 0) {
@@ -285,42 +491,25 @@ public class FileWatcherService {
     }
 
 
-    @Scheduled(fixedDelay=5000)
-    public void cleanupInputDirectories() throws IOException {
-        log.trace("--> cleanupInputDirectories()");
-        List<FileProcess> processListCopy = new ArrayList<>();
-        processListCopy.addAll(fileProcessList);
-        for (Iterator<FileProcess> it = processListCopy.iterator(); it.hasNext();) {
-            FileProcess process = it.next();
-            log.trace("Checking file " + process);
-            if (process.isProcessed()) {
-                log.trace("File completed - " + process + " - cleaning up.");
-                removeFileAndParentDirs(process.getPath());
-                fileProcessList.remove(process);
-            }
-        }
-        log.trace("<-- cleanupInputDirectories()");
+    private void cleanupInputDirectory(FileProcess process) throws IOException {
+        log.trace("--> cleanupInputDirectory(" + process + ")");
+        long start = System.nanoTime();
+        removeFileAndParentDirs(process.getPath());
+        journal.remove(process.getPath());
+        untrack(process);
+        metrics.recordSince("filewatcher.stage.cleanup", start);
+        log.trace("<-- cleanupInputDirectory()");
     }
 
-    @Scheduled(fixedDelay=5000)
-    public void reportErrors() throws IOException {
-        log.trace("--> reportErrors()");
-        List<FileProcess> processListCopy = new ArrayList<>();
-        processListCopy.addAll(fileProcessList);
-        for (Iterator<FileProcess> it = processListCopy.iterator(); it.hasNext(); ) {
-            FileProcess process = it.next();
-            log.trace("Checking file " + process);
-            if (process.isError()) {
-                log.trace("File finished with error - " + process + " - cleaning up.");
-                // Write an error file out
-                PrintWriter pw = new PrintWriter(process.getPath().getParent().resolve(process.getPath().getFileName().toString() + ERROR_FILE_EXTENSION).toFile());
-                pw.println(process.toLogString());
-                pw.flush();
-                pw.close();
-                fileProcessList.remove(process);
-            }
-        }
-        log.trace("<-- cleanupInputDirectories()");
+    private void reportError(FileProcess process) throws IOException {
+        log.trace("--> reportError(" + process + ")");
+        // Write an error file out
+        PrintWriter pw = new PrintWriter(process.getPath().getParent().resolve(process.getPath().getFileName().toString() + ERROR_FILE_EXTENSION).toFile());
+        pw.println(process.toLogString());
+        pw.flush();
+        pw.close();
+        untrack(process);
+        log.trace("<-- reportError()");
     }
 
 }
@@ -0,0 +1,92 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Backend on the JDK WatchService, which is inotify on Linux and needs one registration per
+ * directory.  When the kernel queue overflows, events are lost and each affected key reports
+ * OVERFLOW instead; its directory is passed on in the batch so that it can be rescanned.
+ */
+@Component
+public class JdkWatcherBackend implements WatcherBackend {
+    private static Logger log = LoggerFactory.getLogger(JdkWatcherBackend.class);
+
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+
+    public JdkWatcherBackend() throws IOException {
+        this.watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> WatchEvent<T> cast(WatchEvent<?> event) {
+        return (WatchEvent<T>) event;
+    }
+
+    @Override
+    public void register(Path directory) throws IOException {
+        WatchKey key = directory.register(watcher, ENTRY_DELETE, ENTRY_CREATE, ENTRY_MODIFY);
+        keys.put(key, directory);
+        log.debug("Registered key " + key + " for " + directory + ", " + keys.size() + " keys registered");
+    }
+
+    /**
+     * Folds the events of a signalled key into the batch.  The key is reset straight away so
+     * that further events queue up for the next batch.
+     */
+    private void collectEvents(WatchKey key, WatchBatch batch) {
+        log.trace("--- collectEvents(): WatchKey arrived: " + key);
+        Path dir = keys.get(key);
+        if (dir == null) {
+            log.error("WatchKey not recognized: " + key);
+            return;
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                batch.overflowed(dir);
+                continue;
+            }
+            // Context for directory entry event is the file name of entry
+            WatchEvent<Path> ev = cast(event);
+            batch.change(dir.resolve(ev.context()), ev.kind() == ENTRY_DELETE);
+        }
+        if (!key.reset()) {
+            log.trace("--- collectEvents(): Removed WatchKey: " + key + " for path " + dir);
+            keys.remove(key);
+            batch.removed(dir);
+        }
+    }
+
+    @Override
+    public WatchBatch take(long coalescingWindowMillis) throws InterruptedException {
+        WatchBatch batch = new WatchBatch();
+        WatchKey key = watcher.take();
+        long windowEnd = System.currentTimeMillis() + coalescingWindowMillis;
+        while (key != null) {
+            collectEvents(key, batch);
+            long remaining = windowEnd - System.currentTimeMillis();
+            if (remaining <= 0) break;
+            key = watcher.poll(remaining, TimeUnit.MILLISECONDS);
+        }
+        return batch;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+    }
+}
@@ -0,0 +1,41 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import uk.co.mackenney.automation.util.HostUtil;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Runs {@code lsof -t} for each pending file.  Starts one process per file per sweep, so only
+ * suitable for small inboxes or hosts without a readable /proc.
+ */
+@Component
+public class LsofReadinessDetector implements FileReadinessDetector {
+    private static Logger log = LoggerFactory.getLogger(LsofReadinessDetector.class);
+
+    @Autowired
+    private HostUtil hostUtil;
+
+    private boolean isAvailable(Path file) {
+        log.trace("--> isAvailable( " + file + ")");
+        HostUtil.HostCallResult lsofResult = hostUtil.runHostCommand(new String[] {"lsof","-t", file.toString()});
+        return lsofResult.getStdout() == null || lsofResult.getStdout().length() == 0;
+    }
+
+    @Override
+    public Collection<FileProcess> findReadyFiles(Collection<FileProcess> pendingFiles) {
+        List<FileProcess> result = new ArrayList<>();
+        for (FileProcess process : pendingFiles) {
+            if (isAvailable(process.getPath())) {
+                result.add(process);
+            }
+        }
+        return result;
+    }
+}
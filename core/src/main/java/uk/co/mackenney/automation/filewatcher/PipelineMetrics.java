@@ -0,0 +1,96 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency of each stage a file goes through, and the bytes flowing in and out of the processors.
+ *
+ * Timings are submitted to the actuator GaugeService under names starting with "timer." and sizes
+ * under "histogram.", which the Dropwizard metrics registry keeps as timers and histograms with
+ * rates and percentiles.  Byte and file counts are published directly through the metrics endpoint.
+ */
+@Component
+public class PipelineMetrics implements PublicMetrics {
+    @Autowired
+    private GaugeService gaugeService;
+
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong filesProcessed = new AtomicLong();
+    private final AtomicLong filesFailed = new AtomicLong();
+
+    /**
+     * Records the time the file spent in the status it has just left.
+     */
+    public void statusChanged(FileProcess process) {
+        switch (process.getStatus()) {
+            case READY_TO_PROCESS:
+                recordInterval("filewatcher.stage.detectedToReady", process, FileProcess.FileProcessStatus.PENDING, FileProcess.FileProcessStatus.READY_TO_PROCESS);
+                break;
+            case PROCESSING:
+                recordInterval("filewatcher.stage.readyToProcessing", process, FileProcess.FileProcessStatus.READY_TO_PROCESS, FileProcess.FileProcessStatus.PROCESSING);
+                recordInterval("filewatcher.stage.queued", process, FileProcess.FileProcessStatus.QUEUED, FileProcess.FileProcessStatus.PROCESSING);
+                break;
+            case PROCESSED:
+                filesProcessed.incrementAndGet();
+                recordInterval("filewatcher.stage.processing", process, FileProcess.FileProcessStatus.PROCESSING, FileProcess.FileProcessStatus.PROCESSED);
+                break;
+            case ERROR:
+                filesFailed.incrementAndGet();
+                recordInterval("filewatcher.stage.processing", process, FileProcess.FileProcessStatus.PROCESSING, FileProcess.FileProcessStatus.ERROR);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void recordInterval(String name, FileProcess process, FileProcess.FileProcessStatus from, FileProcess.FileProcessStatus to) {
+        long start = process.getStatusNanos(from);
+        long end = process.getStatusNanos(to);
+        if (start != 0 && end >= start) recordNanos(name, end - start);
+    }
+
+    public void recordNanos(String name, long nanos) {
+        gaugeService.submit("timer." + name, TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /**
+     * Records the time since the start, taken from System.nanoTime().
+     */
+    public void recordSince(String name, long startNanos) {
+        recordNanos(name, System.nanoTime() - startNanos);
+    }
+
+    public void recordSize(String name, long bytes) {
+        gaugeService.submit("histogram." + name, bytes);
+    }
+
+    public void addBytesIn(long bytes) {
+        bytesIn.addAndGet(bytes);
+        recordSize("filewatcher.inputSize", bytes);
+    }
+
+    public void addBytesOut(long bytes) {
+        bytesOut.addAndGet(bytes);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("filewatcher.bytes.in", bytesIn.get()));
+        metrics.add(new Metric<>("filewatcher.bytes.out", bytesOut.get()));
+        metrics.add(new Metric<>("filewatcher.files.processed", filesProcessed.get()));
+        metrics.add(new Metric<>("filewatcher.files.failed", filesFailed.get()));
+        return metrics;
+    }
+}
@@ -0,0 +1,117 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds open handles by scanning /proc/[pid]/fd once per sweep, rather than running lsof per file.
+ * Pending files are indexed by device and inode, and each file descriptor which points at a
+ * regular path is checked against that index, so hard links and renames are detected too.
+ *
+ * Only processes visible to the current user can be inspected, which matches what lsof sees when
+ * run unprivileged.  Where /proc is not available the sweep is delegated to the
+ * {@link QuiescenceReadinessDetector}.
+ */
+@Component
+public class ProcFdReadinessDetector implements FileReadinessDetector {
+    private static Logger log = LoggerFactory.getLogger(ProcFdReadinessDetector.class);
+
+    private static final Path PROC = Paths.get("/proc");
+    private static final String FILE_KEY_ATTRIBUTES = "unix:dev,ino";
+
+    @Autowired
+    private QuiescenceReadinessDetector quiescenceReadinessDetector;
+
+    private Boolean procAvailable;
+
+    private boolean isProcAvailable() {
+        if (procAvailable == null) {
+            try {
+                Files.readAttributes(PROC.resolve("self").resolve("fd"), FILE_KEY_ATTRIBUTES);
+                procAvailable = Files.isDirectory(PROC.resolve("self").resolve("fd"));
+            }
+            catch (UnsupportedOperationException | IOException e) {
+                procAvailable = false;
+            }
+            if (!procAvailable) log.warn("/proc/[pid]/fd is not available, falling back to size/modification time checks");
+        }
+        return procAvailable;
+    }
+
+    private static String fileKey(Map<String,Object> attributes) {
+        return attributes.get("dev") + ":" + attributes.get("ino");
+    }
+
+    /**
+     * Adds the key of every open regular file which is also in the index to the result.
+     */
+    private void scanProcess(Path fdDirectory, Map<String, FileProcess> index, Set<String> openKeys) {
+        try (DirectoryStream<Path> fds = Files.newDirectoryStream(fdDirectory)) {
+            for (Path fd : fds) {
+                try {
+                    // Skip sockets, pipes and anonymous inodes without a stat
+                    String target = Files.readSymbolicLink(fd).toString();
+                    if (!target.startsWith("/")) continue;
+                    String key = fileKey(Files.readAttributes(fd, FILE_KEY_ATTRIBUTES));
+                    if (index.containsKey(key)) openKeys.add(key);
+                }
+                catch (IOException | RuntimeException e) {
+                    // The descriptor was closed while scanning
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            // The process exited or belongs to another user
+        }
+    }
+
+    @Override
+    public Collection<FileProcess> findReadyFiles(Collection<FileProcess> pendingFiles) {
+        log.trace("--> findReadyFiles(" + pendingFiles.size() + " files)");
+        if (!isProcAvailable()) return quiescenceReadinessDetector.findReadyFiles(pendingFiles);
+        if (pendingFiles.isEmpty()) return pendingFiles;
+
+        Map<String, FileProcess> index = new HashMap<>();
+        for (FileProcess process : pendingFiles) {
+            try {
+                index.put(fileKey(Files.readAttributes(process.getPath(), FILE_KEY_ATTRIBUTES)), process);
+            }
+            catch (IOException ioe) {
+                log.debug("--- findReadyFiles(): Unable to read attributes of " + process.getPath() + ": " + ioe);
+            }
+        }
+
+        Set<String> openKeys = new HashSet<>();
+        try (DirectoryStream<Path> processes = Files.newDirectoryStream(PROC, "[0-9]*")) {
+            for (Path process : processes) {
+                scanProcess(process.resolve("fd"), index, openKeys);
+            }
+        }
+        catch (IOException ioe) {
+            log.error("Unable to scan " + PROC + " for open files", ioe);
+            return new ArrayList<>();
+        }
+
+        List<FileProcess> result = new ArrayList<>();
+        for (Map.Entry<String, FileProcess> entry : index.entrySet()) {
+            if (!openKeys.contains(entry.getKey())) result.add(entry.getValue());
+        }
+        log.trace("<-- findReadyFiles() returns " + result.size() + " files");
+        return result;
+    }
+}
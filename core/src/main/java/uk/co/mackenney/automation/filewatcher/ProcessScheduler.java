@@ -0,0 +1,338 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import uk.co.mackenney.automation.ServerAutomationConfiguration;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds files which are ready to process in one queue per processor mapping, and hands them to the
+ * processor pool only as threads become free, so that a large drop into one directory cannot hold
+ * up the others.
+ *
+ * The queue to serve next is the one with the highest priority which has work and is under its
+ * concurrency cap.  Queues of equal priority share the threads in proportion to their weight, by
+ * serving the queue which has had the least work per unit of weight (stride scheduling).  A queue
+ * which has been idle joins at the current pass rather than with credit saved up.  Within a queue
+ * files are taken in arrival order, or smallest first.
+ *
+ * At most {@code fileWatcher.maxInFlight} files are admitted (QUEUED or PROCESSING) at once; beyond
+ * that {@link #submit} blocks, and the file watcher stops promoting pending files, so memory use
+ * does not grow with the size of the inbox.
+ *
+ * Depth, active count and wait time of each queue are published through the actuator metrics
+ * endpoint.
+ */
+@Component
+public class ProcessScheduler implements PublicMetrics {
+    private static Logger log = LoggerFactory.getLogger(ProcessScheduler.class);
+
+    public enum Ordering {FIFO, SMALLEST_FIRST}
+
+    @Autowired
+    private FileWatcherConfiguration config;
+
+    @Autowired
+    private ServerAutomationConfiguration automationConfig;
+
+    @Autowired
+    private FileWatcherProcessHelper processHelper;
+
+    @Autowired
+    @Qualifier("processorExecutor")
+    private Executor processorExecutor;
+
+    private static class Ticket {
+        private final FileProcess process;
+        private final long size;
+        private final long sequence;
+        private final long enqueuedNanos = System.nanoTime();
+
+        Ticket(FileProcess process, long size, long sequence) {
+            this.process = process;
+            this.size = size;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<Ticket> SMALLEST_FIRST = (a, b) -> {
+        int bySize = Long.compare(a.size, b.size);
+        return bySize != 0 ? bySize : Long.compare(a.sequence, b.sequence);
+    };
+
+    private static class ProcessQueue {
+        private final String name;
+        private final int priority;
+        private final int weight;
+        private final int maxConcurrency;
+        private final Ordering ordering;
+        private final Queue<Ticket> tickets;
+        private int active = 0;
+        private double pass = 0;
+        private long dispatched = 0;
+        private long totalWaitNanos = 0;
+        private long maxWaitNanos = 0;
+
+        ProcessQueue(FileWatcherConfiguration.ProcessorClassMapping mapping) {
+            this.name = mapping.getName();
+            this.priority = mapping.getPriority();
+            this.weight = mapping.getWeight();
+            this.maxConcurrency = mapping.getMaxConcurrency();
+            this.ordering = mapping.getOrdering();
+            this.tickets = ordering == Ordering.SMALLEST_FIRST ? new PriorityQueue<>(SMALLEST_FIRST) : new ArrayDeque<>();
+        }
+
+        boolean canDispatch() {
+            return !tickets.isEmpty() && (maxConcurrency <= 0 || active < maxConcurrency);
+        }
+    }
+
+    private final Map<String, ProcessQueue> queuesByRoute = new HashMap<>();
+    private final Map<String, ProcessQueue> queues = new LinkedHashMap<>();
+    private ProcessQueue defaultQueue;
+
+    private int active = 0;
+    private int admitted = 0;
+    private long sequence = 0;
+    private double currentPass = 0;
+
+    private static String routeKey(Path directory, String processorName) {
+        return directory + "\u0000" + processorName;
+    }
+
+    @PostConstruct
+    public void init() {
+        for (FileWatcherConfiguration.ProcessorClassMapping mapping : config.getProcessorClassMappings()) {
+            ProcessQueue queue = queues.computeIfAbsent(mapping.getName(), name -> new ProcessQueue(mapping));
+            Path directory = Paths.get(mapping.getDirectory()).toAbsolutePath().normalize();
+            queuesByRoute.put(routeKey(directory, mapping.getProcessor()), queue);
+            log.info("Scheduling queue " + queue.name + " for " + directory + ": priority " + queue.priority + ", weight " + queue.weight
+                    + ", max concurrency " + (queue.maxConcurrency > 0 ? queue.maxConcurrency : "unlimited") + ", " + queue.ordering);
+        }
+        // Files whose route is not known to the scheduler, which should not happen
+        FileWatcherConfiguration.ProcessorClassMapping unmapped = new FileWatcherConfiguration.ProcessorClassMapping();
+        unmapped.setName("unmapped");
+        defaultQueue = queues.computeIfAbsent(unmapped.getName(), name -> new ProcessQueue(unmapped));
+    }
+
+    /**
+     * Files started at once: one per processor thread, or every admitted file when each gets its
+     * own virtual thread.  Their CPU-bound stages are then capped by the shared CpuPermits.
+     */
+    private int getConcurrencyLimit() {
+        if (automationConfig.isVirtualThreads()) return config.getMaxInFlight();
+        int limit = automationConfig.getProcessorMaxPoolSize();
+        return limit > 0 ? limit : Runtime.getRuntime().availableProcessors();
+    }
+
+    private ProcessQueue queueFor(FileProcess process) {
+        DirectoryRouter.Route route = process.getRoute();
+        ProcessQueue queue = route == null ? null : queuesByRoute.get(routeKey(route.getDirectory(), route.getProcessorName()));
+        return queue != null ? queue : defaultQueue;
+    }
+
+    private static long sizeOf(FileProcess process) {
+        if (process.getFileSize() >= 0) return process.getFileSize();
+        try {
+            return Files.size(process.getPath());
+        }
+        catch (IOException ioe) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Number of further files which can be admitted without blocking.
+     */
+    public synchronized int getAvailableCapacity() {
+        return config.getMaxInFlight() - admitted;
+    }
+
+    /**
+     * Admits a file which is ready to process, waiting while the in-flight limit is reached, and
+     * starts it straight away if a thread is free.
+     */
+    public void submit(FileProcess process) throws InterruptedException {
+        log.trace("--> submit(" + process + ")");
+        ProcessQueue queue = queueFor(process);
+        long size = queue.ordering == Ordering.SMALLEST_FIRST ? sizeOf(process) : 0;
+        synchronized (this) {
+            while (admitted >= config.getMaxInFlight()) {
+                wait();
+            }
+            admitted++;
+        }
+        if (!process.transition(FileProcess.FileProcessStatus.READY_TO_PROCESS, FileProcess.FileProcessStatus.QUEUED)) {
+            // Dropped or resumed elsewhere since it was found ready
+            synchronized (this) {
+                admitted--;
+                notifyAll();
+            }
+            log.trace("<-- submit(): " + process + " is no longer ready");
+            return;
+        }
+        synchronized (this) {
+            if (queue.tickets.isEmpty() && queue.active == 0) queue.pass = Math.max(queue.pass, currentPass);
+            queue.tickets.add(new Ticket(process, size, sequence++));
+        }
+        dispatch();
+        log.trace("<-- submit()");
+    }
+
+    /**
+     * Withdraws a file which is still waiting in its queue.
+     *
+     * @return false if the file was not queued, or has already started
+     */
+    public synchronized boolean cancel(FileProcess process) {
+        if (queueFor(process).tickets.removeIf(ticket -> ticket.process == process)) {
+            admitted--;
+            notifyAll();
+            return true;
+        }
+        return false;
+    }
+
+    private ProcessQueue selectQueue() {
+        ProcessQueue selected = null;
+        for (ProcessQueue queue : queues.values()) {
+            if (!queue.canDispatch()) continue;
+            if (selected == null || queue.priority > selected.priority
+                    || (queue.priority == selected.priority && queue.pass < selected.pass)) {
+                selected = queue;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Starts queued files while there are free threads.  Also called on each pending sweep, so that
+     * files requeued after the pool rejected them are retried even when nothing else is running.
+     */
+    public void dispatch() {
+        List<Ticket> tickets = new ArrayList<>();
+        List<ProcessQueue> owners = new ArrayList<>();
+        synchronized (this) {
+            while (active < getConcurrencyLimit()) {
+                ProcessQueue queue = selectQueue();
+                if (queue == null) break;
+                Ticket ticket = queue.tickets.poll();
+                queue.active++;
+                currentPass = queue.pass;
+                queue.pass += 1.0 / queue.weight;
+                active++;
+                tickets.add(ticket);
+                owners.add(queue);
+            }
+        }
+        for (int i = 0; i < tickets.size(); i++) {
+            final Ticket ticket = tickets.get(i);
+            final ProcessQueue queue = owners.get(i);
+            try {
+                processorExecutor.execute(() -> run(ticket, queue));
+                // Wait time only counts once the pool has accepted the file
+                long waitNanos = System.nanoTime() - ticket.enqueuedNanos;
+                synchronized (this) {
+                    queue.dispatched++;
+                    queue.totalWaitNanos += waitNanos;
+                    queue.maxWaitNanos = Math.max(queue.maxWaitNanos, waitNanos);
+                }
+            }
+            catch (RejectedExecutionException ree) {
+                // The pool is saturated; put the rest back and retry when a running file completes,
+                // or on the next pending sweep
+                log.debug("--- dispatch(): Processor pool rejected " + ticket.process + ", requeueing " + (tickets.size() - i) + " files");
+                synchronized (this) {
+                    for (int j = tickets.size() - 1; j >= i; j--) {
+                        requeue(tickets.get(j), owners.get(j));
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    private void requeue(Ticket ticket, ProcessQueue queue) {
+        if (queue.tickets instanceof ArrayDeque) {
+            ((ArrayDeque<Ticket>)queue.tickets).addFirst(ticket);
+        }
+        else {
+            queue.tickets.add(ticket);
+        }
+        queue.active--;
+        queue.pass -= 1.0 / queue.weight;
+        active--;
+    }
+
+    private void run(Ticket ticket, ProcessQueue queue) {
+        try {
+            if (ticket.process.claimProcessing()) {
+                processHelper.executeProcess(ticket.process);
+            }
+            else {
+                log.debug("--- run(): " + ticket.process + " is no longer queued, skipping it");
+            }
+        }
+        catch (Throwable t) {
+            // Already logged against the file, which has moved to ERROR
+            log.debug("--- run(): " + ticket.process + " failed: " + t);
+        }
+        finally {
+            synchronized (this) {
+                queue.active--;
+                active--;
+                admitted--;
+                notifyAll();
+            }
+            dispatch();
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (this) {
+            metrics.add(new Metric<>("filewatcher.scheduler.active", active));
+            metrics.add(new Metric<>("filewatcher.scheduler.admitted", admitted));
+            metrics.add(new Metric<>("filewatcher.scheduler.capacity", config.getMaxInFlight() - admitted));
+            for (ProcessQueue queue : queues.values()) {
+                String prefix = "filewatcher.scheduler." + queue.name + ".";
+                Ticket oldest = null;
+                for (Ticket ticket : queue.tickets) {
+                    if (oldest == null || ticket.enqueuedNanos < oldest.enqueuedNanos) oldest = ticket;
+                }
+                metrics.add(new Metric<>(prefix + "depth", queue.tickets.size()));
+                metrics.add(new Metric<>(prefix + "active", queue.active));
+                metrics.add(new Metric<>(prefix + "dispatched", queue.dispatched));
+                metrics.add(new Metric<>(prefix + "waitTime.mean", queue.dispatched == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(queue.totalWaitNanos / queue.dispatched)));
+                metrics.add(new Metric<>(prefix + "waitTime.max", TimeUnit.NANOSECONDS.toMillis(queue.maxWaitNanos)));
+                metrics.add(new Metric<>(prefix + "waitTime.oldest", oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(now - oldest.enqueuedNanos)));
+            }
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,121 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import uk.co.mackenney.automation.util.FileUtil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the outputs produced for each distinct input, keyed by a hash of the file contents
+ * (which covers embedded tags) and the processor's configuration fingerprint.  When the same
+ * content arrives again and every recorded output is still in place, processing is skipped.
+ *
+ * Entries are evicted least recently used first once {@code fileWatcher.dedupCacheSize} is
+ * reached.  Hit, miss and eviction counts are published through the actuator metrics endpoint.
+ */
+@Component
+public class ProcessedContentCache implements PublicMetrics {
+    private static Logger log = LoggerFactory.getLogger(ProcessedContentCache.class);
+
+    @Autowired
+    private FileWatcherConfiguration config;
+
+    @Autowired
+    private FileUtil fileUtil;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final Map<String, List<Path>> entries = new LinkedHashMap<String, List<Path>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<Path>> eldest) {
+            if (size() > config.getDedupCacheSize()) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    public boolean isEnabled() {
+        return config.getDedupCacheSize() > 0;
+    }
+
+    /**
+     * Builds the cache key for the staged file of the process.
+     */
+    public String key(FileProcess process, FileProcessor processor) throws IOException {
+        return fileUtil.hash(process.getTempFilePath(), config.getDedupHashAlgorithm()) + "/" + processor.getConfigurationFingerprint();
+    }
+
+    /**
+     * Returns true if the content was processed before and all of its outputs still exist.
+     */
+    public boolean isAlreadyProduced(String key, FileProcess process) {
+        List<Path> outputs;
+        synchronized (entries) {
+            outputs = entries.get(key);
+        }
+        if (outputs != null) {
+            for (Path output : outputs) {
+                if (!Files.exists(output)) {
+                    log.debug("--- isAlreadyProduced(): Output " + output + " is missing, processing " + process + " again");
+                    outputs = null;
+                    break;
+                }
+            }
+        }
+        if (outputs == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        for (Path output : outputs) {
+            process.addOutput(output);
+        }
+        return true;
+    }
+
+    public void put(String key, List<Path> outputs) {
+        List<Path> copy;
+        synchronized (outputs) {
+            copy = new ArrayList<>(outputs);
+        }
+        synchronized (entries) {
+            entries.put(key, copy);
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        metrics.add(new Metric<>("filewatcher.dedup.hits", hitCount));
+        metrics.add(new Metric<>("filewatcher.dedup.misses", misses.get()));
+        metrics.add(new Metric<>("filewatcher.dedup.evictions", evictions.get()));
+        metrics.add(new Metric<>("filewatcher.dedup.size", size));
+        metrics.add(new Metric<>("filewatcher.dedup.hitRate", lookups == 0 ? 0.0 : (double)hitCount / lookups));
+        return metrics;
+    }
+}
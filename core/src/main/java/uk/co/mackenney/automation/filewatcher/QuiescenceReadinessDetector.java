@@ -0,0 +1,46 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Treats a file as ready once its size and modification time are unchanged since the previous
+ * sweep and it has not been modified for at least {@code fileWatcher.quiescencePeriod} milliseconds.
+ * Needs nothing from the host, but cannot tell a stalled writer from a finished one.
+ */
+@Component
+public class QuiescenceReadinessDetector implements FileReadinessDetector {
+    private static Logger log = LoggerFactory.getLogger(QuiescenceReadinessDetector.class);
+
+    @Value("${fileWatcher.quiescencePeriod:2000}")
+    private long quiescencePeriod;
+
+    @Override
+    public Collection<FileProcess> findReadyFiles(Collection<FileProcess> pendingFiles) {
+        List<FileProcess> result = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (FileProcess process : pendingFiles) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(process.getPath(), BasicFileAttributes.class);
+                long lastModified = attrs.lastModifiedTime().toMillis();
+                boolean unchanged = process.observe(attrs.size(), lastModified);
+                if (unchanged && now - lastModified >= quiescencePeriod) {
+                    result.add(process);
+                }
+            }
+            catch (IOException ioe) {
+                log.debug("--- findReadyFiles(): Unable to read attributes of " + process.getPath() + ": " + ioe);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,60 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Changes gathered by a {@link WatcherBackend} over one coalescing window, reduced to the net
+ * change per path, together with the directories whose events were lost to a queue overflow and
+ * the directories which can no longer be watched.
+ */
+public class WatchBatch {
+    private final Map<Path, Boolean> changes = new LinkedHashMap<>();
+    private final Set<Path> overflowedDirectories = new LinkedHashSet<>();
+    private final Set<Path> removedDirectories = new LinkedHashSet<>();
+    private int eventCount = 0;
+
+    /**
+     * Records the latest change to a path, replacing any earlier one.
+     *
+     * @param deleted true if the path was deleted, false if it was created or modified
+     */
+    public void change(Path path, boolean deleted) {
+        // Remove first, so that the map keeps the order of the latest change
+        changes.remove(path);
+        changes.put(path, deleted);
+        eventCount++;
+    }
+
+    public void overflowed(Path directory) {
+        overflowedDirectories.add(directory);
+        eventCount++;
+    }
+
+    public void removed(Path directory) {
+        removedDirectories.add(directory);
+    }
+
+    /**
+     * Net change per path, in the order of the latest change: true if the path ended up deleted.
+     */
+    public Map<Path, Boolean> getChanges() {
+        return Collections.unmodifiableMap(changes);
+    }
+
+    public Set<Path> getOverflowedDirectories() {
+        return Collections.unmodifiableSet(overflowedDirectories);
+    }
+
+    public Set<Path> getRemovedDirectories() {
+        return Collections.unmodifiableSet(removedDirectories);
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+}
@@ -0,0 +1,22 @@
+package uk.co.mackenney.automation.filewatcher;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Source of file system change notifications for the watched directories.  The implementation
+ * in use is chosen by name through {@link FileWatcherConfiguration}.
+ */
+public interface WatcherBackend {
+    /**
+     * Starts watching the directory itself; sub-directories are registered separately.
+     */
+    public void register(Path directory) throws IOException;
+
+    /**
+     * Blocks until a change arrives, then keeps gathering changes for the coalescing window.
+     */
+    public WatchBatch take(long coalescingWindowMillis) throws InterruptedException;
+
+    public void close() throws IOException;
+}
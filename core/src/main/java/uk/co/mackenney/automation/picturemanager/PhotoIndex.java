@@ -0,0 +1,446 @@
+package uk.co.mackenney.automation.picturemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Metadata of every picture filed, so that duplicates and target path collisions are decided from
+ * memory rather than by reading the destination tree.
+ *
+ * Identical content is found by content hash.  Near duplicates, such as a resized or recompressed
+ * copy, are found by a 64 bit difference hash of the picture split into {@link #BANDS} bands of 16
+ * bits: pictures whose hashes differ in fewer bits than there are bands share at least one band
+ * exactly, so only the entries in the same band buckets are compared.
+ *
+ * Entries are appended to {@code pictureManager.indexFile} as
+ * {@code [int bodyLength][body][int crc32]}, and loading stops at the first bad record, which is
+ * where a crash mid-write leaves the file.
+ */
+@Component
+public class PhotoIndex implements PublicMetrics {
+    private static Logger log = LoggerFactory.getLogger(PhotoIndex.class);
+
+    public static final int BANDS = 4;
+    private static final int BAND_BITS = 64 / BANDS;
+
+    private static final int MAGIC = 0x50494458;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final long NO_CAPTURE_TIME = Long.MIN_VALUE;
+
+    public static class Entry {
+        private final String contentHash;
+        private final boolean hasPerceptualHash;
+        private final long perceptualHash;
+        private final LocalDateTime captureTime;
+        private final String make;
+        private final String model;
+        private final int width;
+        private final int height;
+        private final Path target;
+
+        public Entry(String contentHash, boolean hasPerceptualHash, long perceptualHash, LocalDateTime captureTime, String make, String model, int width, int height, Path target) {
+            this.contentHash = contentHash;
+            this.hasPerceptualHash = hasPerceptualHash;
+            this.perceptualHash = perceptualHash;
+            this.captureTime = captureTime;
+            this.make = make;
+            this.model = model;
+            this.width = width;
+            this.height = height;
+            this.target = target;
+        }
+
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        public boolean hasPerceptualHash() {
+            return hasPerceptualHash;
+        }
+
+        public long getPerceptualHash() {
+            return perceptualHash;
+        }
+
+        public LocalDateTime getCaptureTime() {
+            return captureTime;
+        }
+
+        public String getMake() {
+            return make;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public long getPixels() {
+            return (long)width * height;
+        }
+
+        public Path getTarget() {
+            return target;
+        }
+    }
+
+    @Autowired
+    private PictureManagerConfiguration config;
+
+    private final Map<String, Entry> byContent = new HashMap<>();
+    private final Map<Path, Entry> byTarget = new HashMap<>();
+    private final Map<Integer, List<Entry>> buckets = new HashMap<>();
+    private final Set<Path> reserved = new HashSet<>();
+    private final Map<Path, List<Path>> reservedDerivatives = new HashMap<>();
+    private final Set<String> reservedContent = new HashSet<>();
+
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong nearDuplicates = new AtomicLong();
+    private final AtomicLong collisions = new AtomicLong();
+
+    private Path indexFile;
+    private FileChannel channel;
+
+    /**
+     * Difference hash of the picture: each bit says whether a cell of a 9x8 grey grid is brighter
+     * than its right hand neighbour.  Cells are averaged from a sample of their pixels, which is
+     * enough for a picture already subsampled when decoded.
+     */
+    public static long differenceHash(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        long[] cells = new long[9 * 8];
+        for (int cy=0; cy<8; cy++) {
+            int y0 = cy * height / 8;
+            int y1 = Math.max(y0 + 1, (cy + 1) * height / 8);
+            int yStep = Math.max(1, (y1 - y0) / 8);
+            for (int cx=0; cx<9; cx++) {
+                int x0 = cx * width / 9;
+                int x1 = Math.max(x0 + 1, (cx + 1) * width / 9);
+                int xStep = Math.max(1, (x1 - x0) / 8);
+                long sum = 0;
+                int count = 0;
+                for (int y=y0; y<y1 && y<height; y+=yStep) {
+                    for (int x=x0; x<x1 && x<width; x+=xStep) {
+                        int rgb = image.getRGB(x, y);
+                        sum += 299 * ((rgb >> 16) & 0xff) + 587 * ((rgb >> 8) & 0xff) + 114 * (rgb & 0xff);
+                        count++;
+                    }
+                }
+                cells[cy * 9 + cx] = count == 0 ? 0 : sum / count;
+            }
+        }
+        long hash = 0;
+        for (int cy=0; cy<8; cy++) {
+            for (int cx=0; cx<8; cx++) {
+                hash <<= 1;
+                if (cells[cy * 9 + cx] > cells[cy * 9 + cx + 1]) hash |= 1;
+            }
+        }
+        return hash;
+    }
+
+    private static int bucket(int band, long hash) {
+        return band << BAND_BITS | (int)(hash >>> (band * BAND_BITS)) & 0xFFFF;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (config.getIndexFile() == null || config.getIndexFile().isEmpty()) return;
+        indexFile = Paths.get(config.getIndexFile());
+        Files.createDirectories(indexFile.toAbsolutePath().getParent());
+        channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int loaded = load();
+        log.info("Picture index " + indexFile + " loaded " + loaded + " records, " + byTarget.size() + " pictures");
+    }
+
+    /**
+     * Reads every valid record and truncates the file after the last one, leaving the channel
+     * positioned for appending.
+     */
+    private int load() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int)channel.size());
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0);
+        buffer.flip();
+        if (buffer.remaining() < HEADER_LENGTH || buffer.getInt(0) != MAGIC) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            channel.position(HEADER_LENGTH);
+            return 0;
+        }
+        buffer.position(HEADER_LENGTH);
+        int count = 0;
+        CRC32 crc = new CRC32();
+        while (true) {
+            int start = buffer.position();
+            try {
+                int bodyLength = buffer.getInt();
+                if (bodyLength <= 0 || bodyLength > buffer.remaining() - 4) {
+                    buffer.position(start);
+                    break;
+                }
+                byte[] body = new byte[bodyLength];
+                buffer.get(body);
+                crc.reset();
+                crc.update(body);
+                if (buffer.getInt() != (int)crc.getValue()) {
+                    buffer.position(start);
+                    break;
+                }
+                put(decode(body));
+                count++;
+            }
+            catch (BufferUnderflowException | IOException | IllegalArgumentException e) {
+                buffer.position(start);
+                break;
+            }
+        }
+        channel.truncate(buffer.position());
+        channel.position(buffer.position());
+        return count;
+    }
+
+    private static Entry decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        String contentHash = in.readUTF();
+        boolean hasPerceptualHash = in.readBoolean();
+        long perceptualHash = in.readLong();
+        long captureSeconds = in.readLong();
+        String make = in.readUTF();
+        String model = in.readUTF();
+        int width = in.readInt();
+        int height = in.readInt();
+        Path target = Paths.get(in.readUTF());
+        LocalDateTime captureTime = captureSeconds == NO_CAPTURE_TIME ? null : LocalDateTime.ofEpochSecond(captureSeconds, 0, ZoneOffset.UTC);
+        return new Entry(contentHash, hasPerceptualHash, perceptualHash, captureTime, make.isEmpty() ? null : make, model.isEmpty() ? null : model, width, height, target);
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(entry.getContentHash());
+        out.writeBoolean(entry.hasPerceptualHash());
+        out.writeLong(entry.getPerceptualHash());
+        out.writeLong(entry.getCaptureTime() == null ? NO_CAPTURE_TIME : entry.getCaptureTime().toEpochSecond(ZoneOffset.UTC));
+        out.writeUTF(entry.getMake() == null ? "" : entry.getMake());
+        out.writeUTF(entry.getModel() == null ? "" : entry.getModel());
+        out.writeInt(entry.getWidth());
+        out.writeInt(entry.getHeight());
+        out.writeUTF(entry.getTarget().toString());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void append(Entry entry) {
+        if (channel == null) return;
+        try {
+            byte[] body = encode(entry);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            ByteBuffer record = ByteBuffer.allocate(4 + body.length + 4);
+            record.putInt(body.length).put(body).putInt((int)crc.getValue()).flip();
+            while (record.hasRemaining()) channel.write(record);
+        }
+        catch (IOException ioe) {
+            log.error("Unable to append to picture index " + indexFile, ioe);
+        }
+    }
+
+    private void put(Entry entry) {
+        Entry previous = byTarget.put(entry.getTarget(), entry);
+        if (previous != null) forget(previous);
+        byContent.put(entry.getContentHash(), entry);
+        if (entry.hasPerceptualHash()) {
+            for (int band=0; band<BANDS; band++) {
+                buckets.computeIfAbsent(bucket(band, entry.getPerceptualHash()), b -> new ArrayList<>(1)).add(entry);
+            }
+        }
+    }
+
+    /**
+     * Drops the entry from the lookups, other than by target which the caller handles.
+     */
+    private void forget(Entry entry) {
+        byContent.remove(entry.getContentHash(), entry);
+        if (entry.hasPerceptualHash()) {
+            for (int band=0; band<BANDS; band++) {
+                List<Entry> bucket = buckets.get(bucket(band, entry.getPerceptualHash()));
+                if (bucket != null) {
+                    bucket.remove(entry);
+                    if (bucket.isEmpty()) buckets.remove(bucket(band, entry.getPerceptualHash()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that a matched picture is still in the library, forgetting it if it has been removed.
+     */
+    private boolean isFiled(Entry entry) {
+        if (Files.exists(entry.getTarget())) return true;
+        byTarget.remove(entry.getTarget(), entry);
+        forget(entry);
+        return false;
+    }
+
+    /**
+     * Returns the picture filed with identical content, or null after reserving the content for
+     * the caller to file.  A picture with the same content being filed by another thread is waited
+     * for, so that only one of the copies is filed.  The reservation ends with {@link #add} or
+     * {@link #releaseContent}.
+     */
+    public synchronized Entry reserveContent(String contentHash) throws InterruptedException {
+        while (reservedContent.contains(contentHash)) {
+            wait();
+        }
+        Entry entry = byContent.get(contentHash);
+        if (entry == null || !isFiled(entry)) {
+            reservedContent.add(contentHash);
+            return null;
+        }
+        duplicates.incrementAndGet();
+        return entry;
+    }
+
+    public synchronized void releaseContent(String contentHash) {
+        if (reservedContent.remove(contentHash)) notifyAll();
+    }
+
+    /**
+     * Returns the closest filed picture whose difference hash is within
+     * {@code pictureManager.nearDuplicateDistance} bits and whose capture time, where both are
+     * known, is the same, or null.
+     */
+    public synchronized Entry findNearDuplicate(long perceptualHash, LocalDateTime captureTime) {
+        int maxDistance = config.getNearDuplicateDistance();
+        if (maxDistance <= 0) return null;
+        Entry closest = null;
+        int closestDistance = Integer.MAX_VALUE;
+        for (int band=0; band<BANDS; band++) {
+            List<Entry> bucket = buckets.get(bucket(band, perceptualHash));
+            if (bucket == null) continue;
+            for (Entry candidate : bucket) {
+                int distance = Long.bitCount(candidate.getPerceptualHash() ^ perceptualHash);
+                if (distance > maxDistance || distance >= closestDistance) continue;
+                if (captureTime != null && candidate.getCaptureTime() != null && !captureTime.equals(candidate.getCaptureTime())) continue;
+                closest = candidate;
+                closestDistance = distance;
+            }
+        }
+        if (closest == null || !isFiled(closest)) return null;
+        nearDuplicates.incrementAndGet();
+        return closest;
+    }
+
+    /**
+     * Chooses the path to file a picture at: the desired path, or the first free one with a
+     * numbered suffix.  A path is only free if the derivatives named after it are free too, as
+     * pictures whose names differ only in the extension have the same derivative names.  Only paths
+     * unknown to the index are checked on disk.  The paths stay reserved until {@link #add} or
+     * {@link #release} is called for the target.
+     */
+    public synchronized Path reserveTarget(Path desired, Function<Path, List<Path>> derivativesOf) {
+        String filename = desired.getFileName().toString();
+        int dot = filename.lastIndexOf('.');
+        String base = dot > 0 ? filename.substring(0, dot) : filename;
+        String extension = dot > 0 ? filename.substring(dot) : "";
+        Path target = desired;
+        List<Path> derivatives = derivativesOf.apply(target);
+        for (int n=1; !isFree(target, derivatives); n++) {
+            target = desired.resolveSibling(base + "-" + n + extension);
+            derivatives = derivativesOf.apply(target);
+        }
+        if (!target.equals(desired)) collisions.incrementAndGet();
+        reserved.add(target);
+        reserved.addAll(derivatives);
+        reservedDerivatives.put(target, derivatives);
+        return target;
+    }
+
+    private boolean isFree(Path target, List<Path> derivatives) {
+        if (byTarget.containsKey(target) || reserved.contains(target) || Files.exists(target)) return false;
+        for (Path derivative : derivatives) {
+            if (reserved.contains(derivative) || Files.exists(derivative)) return false;
+        }
+        return true;
+    }
+
+    public synchronized void release(Path target) {
+        reserved.remove(target);
+        List<Path> derivatives = reservedDerivatives.remove(target);
+        if (derivatives != null) reserved.removeAll(derivatives);
+    }
+
+    /**
+     * Records a picture once it has been filed at its reserved target, ending the reservation of its content.
+     */
+    public synchronized void add(Entry entry) {
+        release(entry.getTarget());
+        put(entry);
+        append(entry);
+        if (reservedContent.remove(entry.getContentHash())) notifyAll();
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (channel == null) return;
+        channel.force(false);
+        channel.close();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        int size;
+        synchronized (this) {
+            size = byTarget.size();
+        }
+        metrics.add(new Metric<>("picturemanager.index.size", size));
+        metrics.add(new Metric<>("picturemanager.index.duplicates", duplicates.get()));
+        metrics.add(new Metric<>("picturemanager.index.nearDuplicates", nearDuplicates.get()));
+        metrics.add(new Metric<>("picturemanager.index.collisions", collisions.get()));
+        return metrics;
+    }
+}
@@ -0,0 +1,256 @@
+package uk.co.mackenney.automation.picturemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * The details of a photo needed to file it, read from the JPEG headers without decoding the image.
+ *
+ * Only the segments in front of the compressed data are read: the EXIF block in APP1 gives the
+ * capture time, camera make and model, the orientation and the embedded thumbnail, and the start
+ * of frame segment gives the dimensions.  Anything missing or malformed is left unset.
+ */
+public class PhotoMetadata {
+    private static Logger log = LoggerFactory.getLogger(PhotoMetadata.class);
+
+    private static final DateTimeFormatter EXIF_DATE = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_PIXEL_X = 0xA002;
+    private static final int TAG_PIXEL_Y = 0xA003;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    private static final int IFD_MAIN = 0;
+    private static final int IFD_EXIF = 1;
+    private static final int IFD_THUMBNAIL = 2;
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    private LocalDateTime captureTime;
+    private String make;
+    private String model;
+    private int width;
+    private int height;
+    private int orientation = 1;
+    private byte[] thumbnail;
+    private int thumbnailOffset;
+    private int thumbnailLength;
+
+    public LocalDateTime getCaptureTime() {
+        return captureTime;
+    }
+
+    public String getMake() {
+        return make;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * EXIF orientation, 1 when the picture is stored upright.
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * The JPEG thumbnail embedded in the EXIF block, or null if there is none.
+     */
+    public byte[] getThumbnail() {
+        return thumbnail;
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    /**
+     * Reads the headers of a JPEG file.  Files which are not JPEGs give empty metadata.
+     */
+    public static PhotoMetadata read(Path file) throws IOException {
+        PhotoMetadata metadata = new PhotoMetadata();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readUnsignedShort() != 0xFFD8) return metadata;
+            while (true) {
+                if (in.readUnsignedByte() != 0xFF) break;
+                int marker = in.readUnsignedByte();
+                while (marker == 0xFF) marker = in.readUnsignedByte();
+                if (marker == 0xD9 || marker == 0xDA) break;
+                if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) continue;
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) break;
+                if (marker == 0xE1 && metadata.captureTime == null) {
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    metadata.parseExif(segment);
+                }
+                else if (isStartOfFrame(marker) && length >= 5) {
+                    in.readUnsignedByte();
+                    metadata.height = in.readUnsignedShort();
+                    metadata.width = in.readUnsignedShort();
+                    in.skipBytes(length - 5);
+                    // The frame header follows any EXIF block, so there is nothing more to find
+                    break;
+                }
+                else {
+                    skipFully(in, length);
+                }
+            }
+        }
+        catch (EOFException eofe) {
+            log.debug("--- read(): Truncated headers in " + file);
+        }
+        return metadata;
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) throw new EOFException();
+            length -= skipped;
+        }
+    }
+
+    private void parseExif(byte[] segment) {
+        if (segment.length < 14 || segment[0] != 'E' || segment[1] != 'x' || segment[2] != 'i' || segment[3] != 'f') return;
+        ByteBuffer tiff = ByteBuffer.wrap(segment, 6, segment.length - 6).slice();
+        try {
+            tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            if ((tiff.getShort(2) & 0xFFFF) != 42) return;
+            int ifd0 = tiff.getInt(4);
+            long exifIfd = parseIfd(tiff, ifd0, IFD_MAIN);
+            if (exifIfd > 0) parseIfd(tiff, (int)exifIfd, IFD_EXIF);
+            int ifd1 = tiff.getInt(ifd0 + 2 + (tiff.getShort(ifd0) & 0xFFFF) * 12);
+            if (ifd1 > 0) {
+                parseIfd(tiff, ifd1, IFD_THUMBNAIL);
+                if (thumbnailOffset > 0 && thumbnailLength > 0 && (long)thumbnailOffset + thumbnailLength <= tiff.limit()) {
+                    thumbnail = new byte[thumbnailLength];
+                    tiff.position(thumbnailOffset);
+                    tiff.get(thumbnail);
+                }
+            }
+        }
+        catch (IndexOutOfBoundsException | BufferUnderflowException | IllegalArgumentException e) {
+            log.debug("--- parseExif(): Malformed EXIF block: " + e);
+        }
+    }
+
+    /**
+     * Reads the entries of interest from one IFD, returning the offset of the EXIF sub-IFD if it is referenced.
+     */
+    private long parseIfd(ByteBuffer tiff, int offset, int ifd) {
+        int count = tiff.getShort(offset) & 0xFFFF;
+        long exifIfd = 0;
+        for (int i=0; i<count; i++) {
+            int entry = offset + 2 + i * 12;
+            int tag = tiff.getShort(entry) & 0xFFFF;
+            int type = tiff.getShort(entry + 2) & 0xFFFF;
+            int components = tiff.getInt(entry + 4);
+            switch (tag) {
+                case TAG_MAKE:
+                    if (ifd == IFD_MAIN) make = ascii(tiff, entry, type, components);
+                    break;
+                case TAG_MODEL:
+                    if (ifd == IFD_MAIN) model = ascii(tiff, entry, type, components);
+                    break;
+                case TAG_ORIENTATION:
+                    if (ifd == IFD_MAIN) orientation = (int)number(tiff, entry, type);
+                    break;
+                case TAG_DATE_TIME:
+                    if (ifd == IFD_MAIN && captureTime == null) captureTime = date(ascii(tiff, entry, type, components));
+                    break;
+                case TAG_EXIF_IFD:
+                    if (ifd == IFD_MAIN) exifIfd = number(tiff, entry, type);
+                    break;
+                case TAG_DATE_TIME_ORIGINAL:
+                    if (ifd == IFD_EXIF) {
+                        LocalDateTime original = date(ascii(tiff, entry, type, components));
+                        if (original != null) captureTime = original;
+                    }
+                    break;
+                case TAG_PIXEL_X:
+                    if (ifd == IFD_EXIF) width = (int)number(tiff, entry, type);
+                    break;
+                case TAG_PIXEL_Y:
+                    if (ifd == IFD_EXIF) height = (int)number(tiff, entry, type);
+                    break;
+                case TAG_THUMBNAIL_OFFSET:
+                    if (ifd == IFD_THUMBNAIL) thumbnailOffset = (int)number(tiff, entry, type);
+                    break;
+                case TAG_THUMBNAIL_LENGTH:
+                    if (ifd == IFD_THUMBNAIL) thumbnailLength = (int)number(tiff, entry, type);
+                    break;
+            }
+        }
+        return exifIfd;
+    }
+
+    private static long number(ByteBuffer tiff, int entry, int type) {
+        if (type == TYPE_SHORT) return tiff.getShort(entry + 8) & 0xFFFF;
+        if (type == TYPE_LONG) return tiff.getInt(entry + 8) & 0xFFFFFFFFL;
+        return 0;
+    }
+
+    private static String ascii(ByteBuffer tiff, int entry, int type, int components) {
+        if (type != TYPE_ASCII || components <= 0) return null;
+        int position = components <= 4 ? entry + 8 : tiff.getInt(entry + 8);
+        // The count is read from the file, so is checked against the segment before allocating
+        if (position < 0 || (long)position + components > tiff.limit()) return null;
+        byte[] value = new byte[components];
+        for (int i=0; i<components; i++) {
+            value[i] = tiff.get(position + i);
+        }
+        int end = 0;
+        while (end < value.length && value[end] != 0) end++;
+        String result = new String(value, 0, end, StandardCharsets.US_ASCII).trim();
+        return result.isEmpty() ? null : result;
+    }
+
+    private static LocalDateTime date(String value) {
+        if (value == null) return null;
+        try {
+            return LocalDateTime.parse(value, EXIF_DATE);
+        }
+        catch (DateTimeParseException dtpe) {
+            // Unset dates are often written as zeros or blanks
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PhotoMetadata{captureTime=" + captureTime + ", make=" + make + ", model=" + model + ", " + width + "x" + height + ", orientation=" + orientation + (thumbnail != null ? ", thumbnail=" + thumbnail.length + " bytes" : "") + "}";
+    }
+}
@@ -1,22 +1,427 @@
 package uk.co.mackenney.automation.picturemanager;
 
-import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 import uk.co.mackenney.automation.filewatcher.FileProcess;
 import uk.co.mackenney.automation.filewatcher.FileProcessor;
+import uk.co.mackenney.automation.filewatcher.PipelineMetrics;
+import uk.co.mackenney.automation.util.CpuPermits;
+import uk.co.mackenney.automation.util.FileUtil;
 
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 /**
- * Created by developer on 07/01/17.
+ * Files pictures into date based directories and writes the configured resized copies of each.
+ *
+ * The capture time comes from the EXIF headers, or the file modification time when there is none.
+ * The picture is decoded once, subsampled as far as the largest derivative allows so that a large
+ * photo never needs its full resolution on the heap, and the derivatives are then scaled and
+ * written concurrently on the encoder pool.
+ *
+ * Pictures already in the {@link PhotoIndex} are not filed again, and near duplicates are skipped
+ * or kept according to {@code pictureManager.nearDuplicates}.  The perceptual hash is taken from
+ * the EXIF thumbnail when there is one, so a duplicate is usually found without decoding the picture.
  */
 @Component
-@ConfigurationProperties(prefix="pictureManager")
 public class PictureManager implements FileProcessor {
+    private static Logger log = LoggerFactory.getLogger(PictureManager.class);
+
+    private static final String CONTENT_HASH_ALGORITHM = "SHA-256";
+    private static final int PERCEPTUAL_HASH_SOURCE_SIZE = 64;
+
+    @Autowired
+    private PictureManagerConfiguration config;
+
+    @Autowired
+    @Qualifier("encoderExecutor")
+    private Executor encoderExecutor;
+
+    @Autowired
+    private PipelineMetrics metrics;
+
+    @Autowired
+    private FileUtil fileUtil;
+
+    @Autowired
+    private PhotoIndex index;
+
+    @Autowired
+    private CpuPermits cpuPermits;
+
+    private boolean isAllowedInputFileExtension(FileProcess process) {
+        String filename = process.getPath().getFileName().toString().toLowerCase();
+        for (String extension : config.getAllowedInputFileExtensions()) {
+            if (filename.endsWith("." + extension.toLowerCase())) return true;
+        }
+        return false;
+    }
+
+    private PhotoMetadata readMetadata(FileProcess fileProcess) throws IOException {
+        long start = System.nanoTime();
+        PhotoMetadata metadata = PhotoMetadata.read(fileProcess.getTempFilePath());
+        metrics.recordSince("picturemanager.exifParse", start);
+        log.debug("--- readMetadata(): " + fileProcess.getPath() + ": " + metadata);
+        return metadata;
+    }
+
+    /**
+     * Returns the capture time, falling back to the modification time of the input.  The temporary
+     * file is used when the input was moved, as it is then the same file.
+     */
+    private LocalDateTime getCaptureTime(FileProcess fileProcess, PhotoMetadata metadata) throws IOException {
+        if (metadata.getCaptureTime() != null) return metadata.getCaptureTime();
+        Path file = Files.exists(fileProcess.getPath()) ? fileProcess.getPath() : fileProcess.getTempFilePath();
+        fileProcess.log("No capture time in EXIF headers, using the modification time");
+        return LocalDateTime.ofInstant(Files.getLastModifiedTime(file).toInstant(), ZoneId.systemDefault());
+    }
+
+    private String getBaseName(Path file) {
+        String filename = file.getFileName().toString();
+        int dot = filename.lastIndexOf('.');
+        return dot > 0 ? filename.substring(0, dot) : filename;
+    }
+
+    private void copyOriginalToTarget(FileProcess fileProcess, Path targetFilePath) throws IOException {
+        log.debug("--- copyOriginalToTarget(): Copying picture to " + targetFilePath);
+        Files.createDirectories(targetFilePath.getParent());
+        Files.copy(fileProcess.getTempFilePath(), targetFilePath);
+        fileProcess.addOutput(targetFilePath);
+    }
+
+    /**
+     * Decodes the picture at the coarsest subsampling which still leaves its longest edge at least
+     * {@code targetSize}, or returns null if no ImageIO reader handles the format.
+     */
+    private BufferedImage decode(Path file, int targetSize) throws IOException {
+        long start = System.nanoTime();
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int longestEdge = Math.max(reader.getWidth(0), reader.getHeight(0));
+                int subsampling = Math.max(1, longestEdge / targetSize);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage image = reader.read(0, param);
+                log.debug("--- decode(): Decoded " + file + " at 1/" + subsampling + " to " + image.getWidth() + "x" + image.getHeight());
+                return image;
+            }
+            finally {
+                reader.dispose();
+                metrics.recordSince("picturemanager.decode", start);
+            }
+        }
+    }
+
+    private BufferedImage resize(BufferedImage image, int width, int height) {
+        BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = resized.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, height, Color.WHITE, null);
+        }
+        finally {
+            g.dispose();
+        }
+        return resized;
+    }
+
+    /**
+     * Scales the picture so its longest edge is at most maxSize, halving in steps first as a single
+     * bilinear step from far above the target size loses too much detail.
+     */
+    private BufferedImage scale(BufferedImage image, int maxSize) {
+        double factor = Math.min(1.0, (double)maxSize / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int)Math.round(image.getWidth() * factor));
+        int height = Math.max(1, (int)Math.round(image.getHeight() * factor));
+        BufferedImage current = image;
+        while (current.getWidth() / 2 >= width && current.getHeight() / 2 >= height) {
+            current = resize(current, current.getWidth() / 2, current.getHeight() / 2);
+        }
+        if (current.getWidth() != width || current.getHeight() != height || current.getType() != BufferedImage.TYPE_INT_RGB) {
+            current = resize(current, width, height);
+        }
+        return current;
+    }
+
+    /**
+     * Turns the picture upright according to its EXIF orientation.  Mirrored orientations are left as they are.
+     */
+    private BufferedImage orient(BufferedImage image, int orientation) {
+        double angle;
+        switch (orientation) {
+            case 3: angle = Math.PI; break;
+            case 6: angle = Math.PI / 2; break;
+            case 8: angle = -Math.PI / 2; break;
+            default: return image;
+        }
+        boolean quarterTurn = orientation != 3;
+        int width = quarterTurn ? image.getHeight() : image.getWidth();
+        int height = quarterTurn ? image.getWidth() : image.getHeight();
+        BufferedImage rotated = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rotated.createGraphics();
+        try {
+            AffineTransform transform = new AffineTransform();
+            transform.translate(width / 2.0, height / 2.0);
+            transform.rotate(angle);
+            transform.translate(-image.getWidth() / 2.0, -image.getHeight() / 2.0);
+            g.drawImage(image, transform, null);
+        }
+        finally {
+            g.dispose();
+        }
+        return rotated;
+    }
+
+    /**
+     * Writes the JPEG to a temporary file beside the target and renames it into place, so a
+     * partially written derivative is never visible.
+     */
+    private void writeJpeg(BufferedImage image, float quality, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(temp.toFile())) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        finally {
+            writer.dispose();
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void writeDerivative(BufferedImage image, PhotoMetadata metadata, PictureManagerConfiguration.Derivative derivative, Path target) throws IOException {
+        log.trace("--> writeDerivative(" + derivative.getName() + "," + target + ")");
+        long start = System.nanoTime();
+        BufferedImage scaled = orient(scale(image, derivative.getMaxSize()), metadata.getOrientation());
+        writeJpeg(scaled, derivative.getQuality(), target);
+        metrics.recordSince("picturemanager.derivative." + derivative.getName(), start);
+        log.trace("<-- writeDerivative()");
+    }
+
+    private interface DerivativeTask {
+        public void run() throws IOException;
+    }
+
+    private CompletableFuture<Void> submit(final DerivativeTask task) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                task.run();
+            }
+            catch (IOException ioe) {
+                throw new CompletionException(ioe);
+            }
+        }, encoderExecutor);
+    }
+
+    /**
+     * Paths of the derivatives of a picture filed at the target, in the order of the configured derivatives.
+     */
+    private List<Path> getDerivativeTargets(Path datePath, Path target) {
+        List<Path> derivativeTargets = new ArrayList<>();
+        for (PictureManagerConfiguration.Derivative derivative : config.getDerivatives()) {
+            derivativeTargets.add(Paths.get(derivative.getDirectory()).resolve(datePath).resolve(getBaseName(target) + ".jpg"));
+        }
+        return derivativeTargets;
+    }
+
+    private void writeDerivatives(FileProcess fileProcess, BufferedImage image, PhotoMetadata metadata, List<Path> outputFiles) throws Throwable {
+        if (config.getDerivatives().isEmpty()) return;
+        if (image == null) {
+            fileProcess.log("No image reader for this format, derivatives skipped");
+            return;
+        }
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < outputFiles.size(); i++) {
+            final PictureManagerConfiguration.Derivative derivative = config.getDerivatives().get(i);
+            final Path target = outputFiles.get(i);
+            tasks.add(submit(() -> writeDerivative(image, metadata, derivative, target)));
+        }
+        try {
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+        }
+        catch (CompletionException ce) {
+            throw ce.getCause();
+        }
+        for (Path outputFile : outputFiles) {
+            fileProcess.addOutput(outputFile);
+        }
+    }
+
+    private BufferedImage readThumbnail(PhotoMetadata metadata) {
+        if (metadata.getThumbnail() == null) return null;
+        try {
+            return ImageIO.read(new ByteArrayInputStream(metadata.getThumbnail()));
+        }
+        catch (IOException | RuntimeException e) {
+            log.debug("--- readThumbnail(): Unreadable EXIF thumbnail: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the picture should not be filed because the index already holds a near
+     * duplicate of it, with at least as many pixels when the policy is SKIP.
+     */
+    private boolean isSkippedNearDuplicate(FileProcess fileProcess, PhotoMetadata metadata, long perceptualHash) {
+        PhotoIndex.Entry near = index.findNearDuplicate(perceptualHash, metadata.getCaptureTime());
+        if (near == null) return false;
+        long pixels = (long)metadata.getWidth() * metadata.getHeight();
+        if (config.getNearDuplicates() == PictureManagerConfiguration.NearDuplicatePolicy.SKIP && pixels <= near.getPixels()) {
+            fileProcess.log("Near duplicate of " + near.getTarget() + ", not filed");
+            return true;
+        }
+        fileProcess.log("Near duplicate of " + near.getTarget() + ", filed anyway");
+        return false;
+    }
+
+    /**
+     * Decodes the picture at the size needed by the largest derivative, and at least by the perceptual hash.
+     */
+    private BufferedImage decodeForFiling(FileProcess fileProcess) throws IOException {
+        return cpuPermits.call(() -> decode(fileProcess.getTempFilePath(), Math.max(PERCEPTUAL_HASH_SOURCE_SIZE, config.getLargestDerivativeSize())));
+    }
+
+    /**
+     * Files the picture unless it is a duplicate.  If filing fails, the copy of the original is
+     * removed so that a retry is filed under the same name.
+     */
+    private void filePicture(FileProcess fileProcess) throws Throwable {
+        PhotoMetadata metadata = readMetadata(fileProcess);
+        String contentHash = cpuPermits.call(() -> fileUtil.hash(fileProcess.getTempFilePath(), CONTENT_HASH_ALGORITHM));
+        PhotoIndex.Entry duplicate = index.reserveContent(contentHash);
+        if (duplicate != null) {
+            fileProcess.log("Identical to " + duplicate.getTarget() + ", not filed");
+            return;
+        }
+        boolean filed = false;
+        try {
+            filed = filePicture(fileProcess, metadata, contentHash);
+        }
+        finally {
+            if (!filed) index.releaseContent(contentHash);
+        }
+    }
+
+    /**
+     * Files a picture whose content has been reserved, returning false if it was not filed.
+     */
+    private boolean filePicture(FileProcess fileProcess, PhotoMetadata metadata, String contentHash) throws Throwable {
+        // The thumbnail is enough to find a near duplicate, so the picture is only decoded if it is filed
+        BufferedImage thumbnail = cpuPermits.call(() -> readThumbnail(metadata));
+        BufferedImage image = null;
+        boolean decoded = false;
+        if (thumbnail == null) {
+            image = decodeForFiling(fileProcess);
+            decoded = true;
+        }
+        final BufferedImage hashSource = thumbnail != null ? thumbnail : image;
+        long perceptualHash = hashSource != null ? cpuPermits.call(() -> PhotoIndex.differenceHash(hashSource)) : 0;
+        if (hashSource != null && isSkippedNearDuplicate(fileProcess, metadata, perceptualHash)) return false;
+        if (!decoded && !config.getDerivatives().isEmpty()) image = decodeForFiling(fileProcess);
+
+        Path datePath = Paths.get(getCaptureTime(fileProcess, metadata).format(config.getDatePathFormatter()));
+        Path target = index.reserveTarget(Paths.get(config.getOriginalFormatDestination()).resolve(datePath).resolve(fileProcess.getPath().getFileName()),
+                reserved -> getDerivativeTargets(datePath, reserved));
+        List<Path> derivativeTargets = getDerivativeTargets(datePath, target);
+        boolean copied = false;
+        boolean filed = false;
+        try {
+            if (!target.getFileName().equals(fileProcess.getPath().getFileName())) {
+                fileProcess.log("Another picture is filed as " + fileProcess.getPath().getFileName() + ", filing as " + target.getFileName());
+            }
+            copyOriginalToTarget(fileProcess, target);
+            copied = true;
+            writeDerivatives(fileProcess, image, metadata, derivativeTargets);
+            index.add(new PhotoIndex.Entry(contentHash, hashSource != null, perceptualHash, metadata.getCaptureTime(),
+                    metadata.getMake(), metadata.getModel(), metadata.getWidth(), metadata.getHeight(), target));
+            filed = true;
+        }
+        finally {
+            if (!filed) {
+                if (copied) Files.deleteIfExists(target);
+                // Reserved as free, so any derivative found was written before the failure
+                for (Path derivativeTarget : derivativeTargets) {
+                    Files.deleteIfExists(derivativeTarget);
+                }
+                index.release(target);
+            }
+        }
+        return true;
+    }
 
     @Override
-    public void processFile(FileProcess fileProcess) {
+    public String getConfigurationFingerprint() {
+        StringBuilder fingerprint = new StringBuilder(getClass().getName());
+        fingerprint.append('|').append(config.getOriginalFormatDestination());
+        fingerprint.append('|').append(config.getAllowedInputFileExtensions());
+        fingerprint.append('|').append(config.getDatePathPattern());
+        fingerprint.append('|').append(config.getNearDuplicateDistance()).append(',').append(config.getNearDuplicates());
+        for (PictureManagerConfiguration.Derivative derivative : config.getDerivatives()) {
+            fingerprint.append('|').append(derivative.getName())
+                       .append(',').append(derivative.getDirectory())
+                       .append(',').append(derivative.getMaxSize())
+                       .append(',').append(derivative.getQuality());
+        }
+        return UUID.nameUUIDFromBytes(fingerprint.toString().getBytes(StandardCharsets.UTF_8)).toString();
+    }
 
+    @Override
+    public void processFile(FileProcess fileProcess) {
+        log.trace("--> processFile(" + fileProcess + ")");
+        if (isAllowedInputFileExtension(fileProcess)) {
+            log.debug("--- processFile(): Processing file: " + fileProcess);
+            try {
+                filePicture(fileProcess);
+            }
+            catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+        else {
+            log.debug("--- processFile(): Skipping file: " + fileProcess);
+        }
+        log.trace("<-- processFile()");
     }
 }
-
@@ -0,0 +1,170 @@
+package uk.co.mackenney.automation.picturemanager;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Where pictures are filed, and the resized copies made of each.
+ */
+@Component
+@ConfigurationProperties(prefix="pictureManager")
+public class PictureManagerConfiguration {
+
+    private String originalFormatDestination;
+
+    public String getOriginalFormatDestination() {
+        return originalFormatDestination;
+    }
+
+    public void setOriginalFormatDestination(String originalFormatDestination) {
+        this.originalFormatDestination = originalFormatDestination;
+    }
+
+    private List<String> allowedInputFileExtensions = new ArrayList<>(Arrays.asList("jpg", "jpeg"));
+
+    public List<String> getAllowedInputFileExtensions() {
+        return this.allowedInputFileExtensions;
+    }
+
+    /**
+     * Pattern applied to the capture time to give the directory beneath each destination, e.g. 'yyyy/MM'.
+     */
+    private String datePathPattern = "yyyy/MM";
+    private DateTimeFormatter datePathFormatter;
+
+    public String getDatePathPattern() {
+        return datePathPattern;
+    }
+
+    public void setDatePathPattern(String datePathPattern) {
+        this.datePathPattern = datePathPattern;
+    }
+
+    public DateTimeFormatter getDatePathFormatter() {
+        return datePathFormatter;
+    }
+
+    /**
+     * KEEP: Near duplicates are filed as usual, and only logged.
+     * SKIP: Near duplicates are not filed unless they have more pixels than the picture already filed.
+     */
+    public enum NearDuplicatePolicy {KEEP, SKIP}
+
+    private String indexFile;
+
+    public String getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * File holding the metadata index of filed pictures.  When unset the index only covers the current run.
+     */
+    public void setIndexFile(String indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    private int nearDuplicateDistance = 3;
+
+    /**
+     * Largest number of differing bits between perceptual hashes for pictures to be near duplicates,
+     * zero to only detect identical content.  At most 3 is found from a single bucket lookup.
+     */
+    public int getNearDuplicateDistance() {
+        return nearDuplicateDistance;
+    }
+
+    public void setNearDuplicateDistance(int nearDuplicateDistance) {
+        this.nearDuplicateDistance = nearDuplicateDistance;
+    }
+
+    private NearDuplicatePolicy nearDuplicates = NearDuplicatePolicy.KEEP;
+
+    public NearDuplicatePolicy getNearDuplicates() {
+        return nearDuplicates;
+    }
+
+    public void setNearDuplicates(NearDuplicatePolicy nearDuplicates) {
+        this.nearDuplicates = nearDuplicates;
+    }
+
+    public static class Derivative {
+        private String name;
+        private String directory;
+        private int maxSize;
+        private float quality = 0.85f;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * Length in pixels of the longest edge.  Smaller pictures are not enlarged.
+         */
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * JPEG compression quality between 0 and 1.
+         */
+        public float getQuality() {
+            return quality;
+        }
+
+        public void setQuality(float quality) {
+            this.quality = quality;
+        }
+    }
+
+    private List<Derivative> derivatives = new ArrayList<>();
+
+    public List<Derivative> getDerivatives() {
+        return derivatives;
+    }
+
+    /**
+     * Longest edge of the largest derivative, which decides how far pictures can be subsampled when decoded.
+     */
+    public int getLargestDerivativeSize() {
+        int largest = 0;
+        for (Derivative derivative : derivatives) {
+            largest = Math.max(largest, derivative.getMaxSize());
+        }
+        return largest;
+    }
+
+    @PostConstruct
+    public void validateParameters() {
+        datePathFormatter = DateTimeFormatter.ofPattern(datePathPattern);
+        if (nearDuplicateDistance < 0 || nearDuplicateDistance > PhotoIndex.BANDS - 1) {
+            throw new IllegalArgumentException("pictureManager.nearDuplicateDistance must be between 0 and " + (PhotoIndex.BANDS - 1));
+        }
+        for (Derivative derivative : derivatives) {
+            if (derivative.getName() == null || derivative.getDirectory() == null || derivative.getMaxSize() <= 0) {
+                throw new IllegalArgumentException("pictureManager.derivatives entries need a name, a directory and a positive maxSize");
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package uk.co.mackenney.automation.util;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on another executor while holding one of the given {@link CpuPermits}, so that the
+ * number of tasks doing work at once is capped independently of the number of threads.  Tasks
+ * waiting for a permit block their own thread, which is cheap when that is a virtual thread.
+ */
+public class BoundedExecutor implements Executor {
+    private final Executor delegate;
+    private final CpuPermits permits;
+
+    public BoundedExecutor(Executor delegate, CpuPermits permits) {
+        this.delegate = delegate;
+        this.permits = permits;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        delegate.execute(() -> permits.call(() -> {
+            task.run();
+            return null;
+        }));
+    }
+
+    public int getAvailablePermits() {
+        return permits.getAvailablePermits();
+    }
+}
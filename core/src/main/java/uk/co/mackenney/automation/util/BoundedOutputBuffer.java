@@ -0,0 +1,45 @@
+package uk.co.mackenney.automation.util;
+
+/**
+ * Ring buffer which keeps only the last {@code capacity} characters written to it, and counts
+ * how many were discarded.
+ */
+public class BoundedOutputBuffer {
+    private final char[] buffer;
+    private int start = 0;
+    private int length = 0;
+    private long discarded = 0;
+
+    public BoundedOutputBuffer(int capacity) {
+        this.buffer = new char[Math.max(capacity, 1)];
+    }
+
+    public synchronized void append(char[] chars, int offset, int count) {
+        for (int i=offset; i<offset + count; i++) {
+            if (length < buffer.length) {
+                buffer[(start + length) % buffer.length] = chars[i];
+                length++;
+            }
+            else {
+                buffer[start] = chars[i];
+                start = (start + 1) % buffer.length;
+                discarded++;
+            }
+        }
+    }
+
+    public synchronized long getDiscarded() {
+        return discarded;
+    }
+
+    public synchronized String toString() {
+        StringBuilder result = new StringBuilder(length + 48);
+        if (discarded > 0) {
+            result.append("[").append(discarded).append(" characters discarded]\n");
+        }
+        int firstPart = Math.min(length, buffer.length - start);
+        result.append(buffer, start, firstPart);
+        result.append(buffer, 0, length - firstPart);
+        return result.toString();
+    }
+}
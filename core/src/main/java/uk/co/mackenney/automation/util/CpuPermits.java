@@ -0,0 +1,58 @@
+package uk.co.mackenney.automation.util;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Caps the CPU-bound work running at once, independently of the number of threads.  With virtual
+ * threads, up to maxInFlight files are processed concurrently, so their hashing, parsing and
+ * decoding run under these permits, the same ones which cap the encodes.  With a platform pool the
+ * number of threads is already the cap, and the permits are unlimited.
+ *
+ * A section holding a permit must not wait on work which needs one, or the permits can run out.
+ */
+public class CpuPermits {
+    public interface Section<T, E extends Exception> {
+        public T run() throws E;
+    }
+
+    private final Semaphore permits;
+
+    public CpuPermits(int permits) {
+        this.permits = new Semaphore(permits, true);
+    }
+
+    private CpuPermits() {
+        this.permits = null;
+    }
+
+    public static CpuPermits unlimited() {
+        return new CpuPermits();
+    }
+
+    /**
+     * Runs the section on the calling thread while holding a permit.
+     */
+    public <T, E extends Exception> T call(Section<T, E> section) throws E {
+        if (permits == null) return section.run();
+        try {
+            permits.acquire();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for a permit", ie);
+        }
+        try {
+            return section.run();
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Number of permits free, or -1 when unlimited.
+     */
+    public int getAvailablePermits() {
+        return permits == null ? -1 : permits.availablePermits();
+    }
+}
@@ -2,7 +2,14 @@ package uk.co.mackenney.automation.util;
 
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Created by developer on 09/01/17.
@@ -13,4 +20,57 @@ public class FileUtil {
         String filename = inputFilePath.getFileName().toString();
         return filename.substring(filename.lastIndexOf("."));
     }
+
+    private static final long HASH_WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Digests the file contents through memory-mapped windows, so the data is never copied onto the heap.
+     *
+     * @return the digest as lower case hex
+     */
+    public String hash(Path file, String algorithm) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        }
+        catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalArgumentException(nsae);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += HASH_WINDOW_SIZE) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(HASH_WINDOW_SIZE, size - position)));
+            }
+        }
+        byte[] bytes = digest.digest();
+        char[] result = new char[bytes.length * 2];
+        for (int i=0; i<bytes.length; i++) {
+            result[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            result[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    private static final Path THREAD_IO = Paths.get("/proc/thread-self/io");
+
+    /**
+     * Returns the number of bytes the calling thread has read through read system calls, from
+     * /proc/thread-self/io, or -1 where that is not available.  A virtual thread gets -1, as the
+     * counter belongs to whichever carrier thread it is running on at the time.
+     */
+    public long getThreadBytesRead() {
+        if (VirtualThreads.isVirtual(Thread.currentThread())) return -1;
+        try {
+            for (String line : Files.readAllLines(THREAD_IO)) {
+                if (line.startsWith("rchar:")) {
+                    return Long.parseLong(line.substring(6).trim());
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            // Not Linux, or /proc is not mounted
+        }
+        return -1;
+    }
 }
@@ -1,13 +1,25 @@
 package uk.co.mackenney.automation.util;
 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
-import uk.co.mackenney.automation.filewatcher.FileWatcherController;
+import uk.co.mackenney.automation.ServerAutomationConfiguration;
 
+import javax.annotation.PostConstruct;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by developer on 09/01/17.
@@ -68,25 +80,147 @@ public class HostUtil {
 
     }
 
+    /**
+     * Receives the output of a host command line by line while it runs.  Carriage returns end a
+     * line as well as newlines, so progress lines which are rewritten in place arrive one by one.
+     */
+    public interface OutputListener {
+        public default void onStdoutLine(String line) {}
+        public default void onStderrLine(String line) {}
+    }
+
     private static Logger log = LoggerFactory.getLogger(HostUtil.class);
 
-    public HostCallResult runHostCommand(String[] command) {
-        log.trace("--> runHostCommand(" + command + ")");
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    @Autowired
+    private ServerAutomationConfiguration config;
+
+    private ExecutorService streamExecutor;
+
+    /**
+     * Each host command needs a thread per output stream and one to wait for exit, all of which
+     * spend their time blocked, so they run on virtual threads when the execution mode allows.
+     */
+    @PostConstruct
+    public void init() {
+        if (config.isVirtualThreads()) {
+            streamExecutor = VirtualThreads.newVirtualThreadPerTaskExecutor("host-io-");
+        }
+        else {
+            streamExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "host-io-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Copies the stream into the buffer until end of file, handing each complete line to the listener.
+     */
+    private void drain(InputStream stream, BoundedOutputBuffer buffer, OutputListener listener, boolean stderr) {
+        char[] chars = new char[8192];
+        StringBuilder line = new StringBuilder();
+        try (Reader reader = new InputStreamReader(stream)) {
+            int count;
+            while ((count = reader.read(chars)) != -1) {
+                buffer.append(chars, 0, count);
+                if (listener == null) continue;
+                for (int i=0; i<count; i++) {
+                    char c = chars[i];
+                    if (c == '\n' || c == '\r') {
+                        if (line.length() > 0) {
+                            if (stderr) listener.onStderrLine(line.toString());
+                            else listener.onStdoutLine(line.toString());
+                            line.setLength(0);
+                        }
+                    }
+                    else if (line.length() < MAX_LINE_LENGTH) {
+                        line.append(c);
+                    }
+                }
+            }
+        }
+        catch (IOException ioe) {
+            log.debug("--- drain(): Stream closed: " + ioe);
+        }
+    }
+
+    /**
+     * Starts the command and drains stdout and stderr concurrently into buffers bounded by
+     * {@code automation.hostCommandOutputLimit}, so a chatty child can neither block on a full
+     * pipe nor grow the heap.  The returned future completes when the process exits, completes
+     * exceptionally with a {@link TimeoutException} if it outlives the timeout, and kills the
+     * process if it is cancelled.
+     *
+     * @param timeoutMillis maximum run time, or zero to wait indefinitely
+     * @param listener receives output lines as they are written, may be null
+     */
+    public CompletableFuture<HostCallResult> runHostCommandAsync(final String[] command, final long timeoutMillis, final OutputListener listener) {
+        log.trace("--> runHostCommandAsync(" + Arrays.toString(command) + ")");
+        final CompletableFuture<HostCallResult> result = new CompletableFuture<>();
+        final Process p;
         try {
-            Process p = Runtime.getRuntime().exec(command);
-            InputStream is = p.getInputStream();
-            InputStream eis = p.getErrorStream();
-            StringWriter sw = new StringWriter();
-            StringWriter esw = new StringWriter();
-            int exitCode = p.waitFor();
-            IOUtils.copy(is,sw);
-            IOUtils.copy(eis,esw);
-            HostCallResult result = new HostCallResult(command,sw.toString(), esw.toString(), exitCode);
-            log.trace("--- runHostCommand: result: " + result);
+            p = new ProcessBuilder(command).start();
+            p.getOutputStream().close();
+        }
+        catch (IOException ioe) {
+            result.completeExceptionally(ioe);
             return result;
         }
-        catch (Throwable t) {
-            throw new RuntimeException(t);
+
+        final BoundedOutputBuffer stdout = new BoundedOutputBuffer(config.getHostCommandOutputLimit());
+        final BoundedOutputBuffer stderr = new BoundedOutputBuffer(config.getHostCommandOutputLimit());
+        final CompletableFuture<Void> drains = CompletableFuture.allOf(
+                CompletableFuture.runAsync(() -> drain(p.getInputStream(), stdout, listener, false), streamExecutor),
+                CompletableFuture.runAsync(() -> drain(p.getErrorStream(), stderr, listener, true), streamExecutor));
+
+        streamExecutor.execute(() -> {
+            try {
+                if (timeoutMillis > 0) {
+                    if (!p.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                        p.destroyForcibly();
+                        result.completeExceptionally(new TimeoutException("Command did not finish within " + timeoutMillis + "ms: " + Arrays.toString(command)));
+                        return;
+                    }
+                }
+                else {
+                    p.waitFor();
+                }
+                drains.join();
+                HostCallResult callResult = new HostCallResult(command, stdout.toString(), stderr.toString(), p.exitValue());
+                log.trace("--- runHostCommandAsync: result: " + callResult);
+                result.complete(callResult);
+            }
+            catch (Throwable t) {
+                p.destroyForcibly();
+                result.completeExceptionally(t);
+            }
+        });
+
+        // Covers cancellation and timeouts as well as failures
+        result.whenComplete((r, t) -> {
+            if (t != null && p.isAlive()) p.destroyForcibly();
+        });
+        return result;
+    }
+
+    public HostCallResult runHostCommand(String[] command, OutputListener listener) {
+        log.trace("--> runHostCommand(" + Arrays.toString(command) + ")");
+        try {
+            return runHostCommandAsync(command, config.getHostCommandTimeout() * 1000L, listener).join();
+        }
+        catch (CompletionException ce) {
+            throw new RuntimeException(ce.getCause());
         }
     }
+
+    public HostCallResult runHostCommand(String[] command) {
+        return runHostCommand(command, null);
+    }
 }
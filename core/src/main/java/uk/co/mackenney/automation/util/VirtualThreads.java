@@ -0,0 +1,84 @@
+package uk.co.mackenney.automation.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates executors which start a virtual thread per task.  The application is still compiled for
+ * Java 8, so the JDK 21 API is reached by reflection, and callers fall back to platform threads
+ * when the running JVM does not have it.
+ */
+public final class VirtualThreads {
+    private static Logger log = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final boolean SUPPORTED = virtualThreadFactory("probe-") != null;
+    private static final Method IS_VIRTUAL = isVirtualMethod();
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return SUPPORTED;
+    }
+
+    private static Method isVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * True if the thread is a virtual thread, which may move between carrier threads whenever it parks.
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) return false;
+        try {
+            return (Boolean)IS_VIRTUAL.invoke(thread);
+        }
+        catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns a factory for virtual threads named with the prefix and a counter, or null if the
+     * JVM does not support virtual threads.
+     */
+    public static ThreadFactory virtualThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            log.debug("--- virtualThreadFactory(): Virtual threads are not available: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns an executor which runs each task on a new virtual thread, or null if the JVM does not
+     * support virtual threads.
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+        ThreadFactory factory = virtualThreadFactory(namePrefix);
+        if (factory == null) return null;
+        try {
+            Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService)method.invoke(null, factory);
+        }
+        catch (ReflectiveOperationException e) {
+            log.debug("--- newVirtualThreadPerTaskExecutor(): Virtual threads are not available: " + e);
+            return null;
+        }
+    }
+}